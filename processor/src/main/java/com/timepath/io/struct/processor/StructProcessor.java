@@ -0,0 +1,684 @@
+package com.timepath.io.struct.processor;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Emits a concrete {@code StructCodec} for every class with {@code @StructField} members, so that {@code Struct} does
+ * not have to discover the layout and compile one at runtime.
+ * Classes using features this processor does not understand are skipped, and fall back to the runtime compiler.
+ *
+ * @author TimePath
+ */
+@SupportedAnnotationTypes(StructProcessor.STRUCT_FIELD)
+public class StructProcessor extends AbstractProcessor {
+
+    static final String STRUCT_FIELD = "com.timepath.io.struct.StructField";
+    static final String STRUCT_CONSTRUCTOR = "com.timepath.io.struct.StructConstructor";
+    static final String STRUCT_VARINT = "com.timepath.io.struct.StructVarint";
+    /**
+     * Must match {@code StructCodec.GENERATED_SUFFIX}
+     */
+    static final String SUFFIX = "$$StructCodec";
+
+    @NotNull
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(@NotNull Set<? extends TypeElement> annotations, @NotNull RoundEnvironment roundEnv) {
+        @NotNull Set<TypeElement> types = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (e.getKind() != ElementKind.FIELD) continue;
+                types.add((TypeElement) e.getEnclosingElement());
+            }
+        }
+        for (TypeElement type : types) {
+            try {
+                generate(type);
+            } catch (UnsupportedException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "Not generating a codec, falling back to runtime: " + e.getMessage(), type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, e.toString(), type);
+            }
+        }
+        return false;
+    }
+
+    private void generate(@NotNull TypeElement type) throws IOException, UnsupportedException {
+        @NotNull PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        checkAccessible(type, pkg);
+        if (!type.getTypeParameters().isEmpty()) throw new UnsupportedException("generic struct " + type);
+        @NotNull String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        @NotNull String simpleName = binaryName.substring(binaryName.lastIndexOf('.') + 1) + SUFFIX;
+        @NotNull String qualifiedName = pkg.isUnnamed() ? simpleName : pkg.getQualifiedName() + "." + simpleName;
+        @NotNull String typeName = type.getQualifiedName().toString();
+
+        @NotNull List<Member> members = new ArrayList<>();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            @Nullable AnnotationMirror meta = getStructField(field);
+            if (meta == null) continue;
+            members.add(new Member(type, field, meta, pkg));
+        }
+        Collections.sort(members, new Comparator<Member>() {
+            @Override
+            public int compare(@NotNull Member o1, @NotNull Member o2) {
+                return o1.index - o2.index;
+            }
+        });
+        for (int i = 0; i < members.size(); i++) {
+            @NotNull Member m = members.get(i);
+            if (m.lengthRef.isEmpty()) continue;
+            for (Member count : members.subList(0, i)) {
+                if (count.field.getSimpleName().contentEquals(m.lengthRef)) m.count = count;
+            }
+            if (m.count == null || !isIntegral(m.count.type)) {
+                throw new UnsupportedException("lengthRef " + m.lengthRef + " on " + m.field);
+            }
+        }
+        if (isImmutable(type, members)) throw new UnsupportedException("immutable struct " + type);
+
+        @NotNull Source src = new Source();
+        if (!pkg.isUnnamed()) {
+            src.line("package " + pkg.getQualifiedName() + ";");
+            src.line("");
+        }
+        src.line("import com.timepath.io.struct.StringTable;");
+        src.line("import com.timepath.io.struct.Struct;");
+        src.line("import com.timepath.io.struct.StructCodec;");
+        src.line("");
+        src.line("import java.io.DataInput;");
+        src.line("import java.io.DataOutput;");
+        src.line("import java.io.IOException;");
+        src.line("");
+        src.line("/**");
+        src.line(" * Generated by " + getClass().getName() + ", do not edit");
+        src.line(" */");
+        src.open("public final class " + simpleName + " extends StructCodec<" + typeName + "> {");
+        src.line("");
+        @NotNull Map<String, String> codecs = new LinkedHashMap<>();
+        for (Member m : members) {
+            collectCodecs(m.type, codecs);
+        }
+        for (Map.Entry<String, String> e : codecs.entrySet()) {
+            // Looked up on first use, a struct may contain itself
+            src.line("private volatile StructCodec<" + e.getKey() + "> " + e.getValue() + ";");
+        }
+        int tables = 0;
+        for (Member m : members) {
+            if (!m.dedup) continue;
+            m.strings = "strings" + tables++;
+            src.line("private final StringTable " + m.strings + " = new StringTable();");
+        }
+        if (!codecs.isEmpty() || tables > 0) src.line("");
+        for (Map.Entry<String, String> e : codecs.entrySet()) {
+            @NotNull String codec = e.getValue();
+            src.open("private StructCodec<" + e.getKey() + "> " + codec + "() {");
+            src.line("StructCodec<" + e.getKey() + "> codec = " + codec + ";");
+            src.line("if (codec == null) " + codec + " = codec = Struct.nestedCodec(" + e.getKey() + ".class);");
+            src.line("return codec;");
+            src.close("}");
+            src.line("");
+        }
+
+        src.line("@Override");
+        src.open("public " + typeName + " instantiate() throws InstantiationException {");
+        if (isInstantiable(type)) {
+            src.line("return new " + typeName + "();");
+        } else {
+            src.line("throw new InstantiationException(\"Cannot instantiate " + typeName + "\");");
+        }
+        src.close("}");
+        src.line("");
+
+        src.line("@Override");
+        src.open("public void read(" + typeName + " instance, DataInput input) throws IOException, InstantiationException {");
+        for (Member m : members) {
+            if (m.skip > 0) src.line("skip(input, " + m.skip + ");");
+            read(src, m, m.type, m.getter, m.setter, codecs, 0);
+        }
+        src.close("}");
+        src.line("");
+
+        src.line("@Override");
+        src.open("public void write(" + typeName + " instance, DataOutput output) throws IOException, InstantiationException {");
+        for (Member m : members) {
+            if (m.skip > 0) src.line("pad(output, " + m.skip + ");");
+            write(src, m, m.type, m.getter, codecs, 0);
+        }
+        src.close("}");
+        src.close("}");
+
+        try (Writer w = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()) {
+            w.write(src.toString());
+        }
+    }
+
+    /**
+     * @param setter Format string taking the value to assign, or null if not assignable
+     */
+    private void read(@NotNull Source src, @NotNull Member m, @NotNull TypeMirror type,
+                      @NotNull String getter, @Nullable String setter,
+                      @NotNull Map<String, String> codecs, int depth) {
+        @Nullable String primitive = readPrimitive(type, m);
+        if (primitive != null) {
+            src.line(String.format(setter, primitive) + ";");
+        } else if (type.getKind() == TypeKind.ARRAY) {
+            @NotNull TypeMirror elemType = ((ArrayType) type).getComponentType();
+            @NotNull String a = "a" + depth, i = "i" + depth;
+            src.open("{");
+            src.line(type + " " + a + " = " + getter + ";");
+            if (depth == 0 && (m.length > 0 || m.count != null) && setter != null) {
+                @NotNull String n = String.valueOf(m.length);
+                if (m.count != null) {
+                    n = "n" + depth;
+                    src.line("int " + n + " = length(" + count(m) + ");");
+                }
+                // Instantiate if needed
+                src.open("if (" + a + " == null || " + a + ".length != " + n + ") {");
+                src.line(a + " = new " + erasure(elemType) + "[" + n + "];");
+                src.line(String.format(setter, a) + ";");
+                src.close("}");
+            } else if (depth == 0) {
+                // Check if instantiated
+                src.line("if (" + a + " == null) throw new InstantiationException(\"Cannnot instantiate array of unknown length\");");
+            }
+            if (elemType.getKind().isPrimitive() && !m.varint) {
+                // Bulk transfer
+                src.line("readArray(input, " + a + (reverse(m, elemType) ? ", true" : "") + ");");
+            } else {
+                src.open("for (int " + i + " = 0; " + i + " < " + a + ".length; " + i + "++) {");
+                read(src, m, elemType, a + "[" + i + "]", a + "[" + i + "] = %s", codecs, depth + 1);
+                src.close("}");
+            }
+            src.close("}");
+        } else {
+            @NotNull String codec = codecs.get(erasure(type)) + "()";
+            @NotNull String ref = "ref" + depth;
+            src.open("{");
+            src.line(erasure(type) + " " + ref + " = " + getter + ";");
+            src.open("if (" + ref + " == null || !" + codec + ".isMutable()) {");
+            if (setter != null) {
+                // Instantiate if needed, immutable types always are
+                src.line(String.format(setter, codec + ".decode(input)") + ";");
+            } else {
+                src.line("throw new IllegalStateException(\"Cannot write to " + m.field.getSimpleName() + "\");");
+            }
+            src.next("} else {");
+            src.line(codec + ".read(" + ref + ", input);");
+            src.close("}");
+            src.close("}");
+        }
+    }
+
+    private void write(@NotNull Source src, @NotNull Member m, @NotNull TypeMirror type, @NotNull String getter,
+                       @NotNull Map<String, String> codecs, int depth) {
+        @Nullable String primitive = writePrimitive(type, m, getter);
+        if (primitive != null) {
+            src.line(primitive + ";");
+        } else if (type.getKind() == TypeKind.ARRAY) {
+            @NotNull TypeMirror elemType = ((ArrayType) type).getComponentType();
+            @NotNull String a = "a" + depth, i = "i" + depth;
+            src.open("{");
+            src.line(type + " " + a + " = " + getter + ";");
+            boolean optional = depth == 0 && m.nullable;
+            if (optional) {
+                src.open("if (" + a + " != null) {");
+            } else if (depth == 0) {
+                // Check if instantiated
+                src.line("if (" + a + " == null) throw new InstantiationException(\"Cannnot instantiate array of unknown length\");");
+            }
+            if (depth == 0 && m.length > 0) {
+                src.line("if (" + a + ".length != " + m.length + ") throw new IllegalStateException(\""
+                        + m.field.getSimpleName() + " must have " + m.length + " elements\");");
+            }
+            if (depth == 0 && m.count != null) {
+                src.line("if (" + a + ".length != " + count(m) + ") throw new IllegalStateException(\""
+                        + m.field.getSimpleName() + " has \" + " + a + ".length + \" elements, but "
+                        + m.lengthRef + " is \" + " + count(m) + ");");
+            }
+            if (elemType.getKind().isPrimitive() && !m.varint) {
+                // Bulk transfer
+                src.line("writeArray(output, " + a + (reverse(m, elemType) ? ", true" : "") + ");");
+            } else {
+                src.open("for (int " + i + " = 0; " + i + " < " + a + ".length; " + i + "++) {");
+                write(src, m, elemType, a + "[" + i + "]", codecs, depth + 1);
+                src.close("}");
+            }
+            if (optional) src.close("}");
+            src.close("}");
+        } else {
+            @NotNull String codec = codecs.get(erasure(type)) + "()";
+            @NotNull String ref = "ref" + depth;
+            src.open("{");
+            src.line(erasure(type) + " " + ref + " = " + getter + ";");
+            if (depth == 0) {
+                // Skip over
+                src.line("if (" + ref + " == null) pad(output, Struct.sizeof(" + codec + ".instantiate()));");
+                src.line("else " + codec + ".write(" + ref + ", output);");
+            } else {
+                src.line("if (" + ref + " == null) throw new UnsupportedOperationException(\"Null objects not yet supported\");");
+                src.line(codec + ".write(" + ref + ", output);");
+            }
+            src.close("}");
+        }
+    }
+
+    @Nullable
+    private String readPrimitive(@NotNull TypeMirror type, @NotNull Member m) {
+        if (m.varint) switch (type.getKind()) {
+            case CHAR:
+                return "(char) readVarLong(input)";
+            case SHORT:
+                return "(short) readVarLong(input)";
+            case INT:
+                return "(int) readVarLong(input)";
+            case LONG:
+                return "readVarLong(input)";
+            case DECLARED:
+                if (!isString(type)) return null;
+                return "readPrefixedString(input, " + m.limit + (m.dedup ? ", " + m.strings : "") + ")";
+        }
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "input.readBoolean()";
+            case BYTE:
+                return "input.readByte()";
+            case CHAR:
+                return m.reverse ? "Character.reverseBytes(input.readChar())" : "input.readChar()";
+            case SHORT:
+                return m.reverse ? "Short.reverseBytes(input.readShort())" : "input.readShort()";
+            case INT:
+                return m.reverse ? "Integer.reverseBytes(input.readInt())" : "input.readInt()";
+            case LONG:
+                return m.reverse ? "Long.reverseBytes(input.readLong())" : "input.readLong()";
+            case FLOAT:
+                return m.reverse ? "Float.intBitsToFloat(Integer.reverseBytes(input.readInt()))" : "input.readFloat()";
+            case DOUBLE:
+                return m.reverse ? "Double.longBitsToDouble(Long.reverseBytes(input.readLong()))" : "input.readDouble()";
+            case DECLARED:
+                if (!isString(type)) return null;
+                return "readString(input, " + m.limit + (m.dedup ? ", " + m.strings : "") + ")";
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private String writePrimitive(@NotNull TypeMirror type, @NotNull Member m, @NotNull String value) {
+        if (m.varint) switch (type.getKind()) {
+            case CHAR:
+            case SHORT:
+            case INT:
+            case LONG:
+                return "writeVarLong(output, " + value + ")";
+            case DECLARED:
+                if (!isString(type)) return null;
+                return "writePrefixedString(output, " + value + ", " + m.limit + ")";
+        }
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "output.writeBoolean(" + value + ")";
+            case BYTE:
+                return "output.writeByte(" + value + ")";
+            case CHAR:
+                return "output.writeChar(" + (m.reverse ? "Character.reverseBytes(" + value + ")" : value) + ")";
+            case SHORT:
+                return "output.writeShort(" + (m.reverse ? "Short.reverseBytes(" + value + ")" : value) + ")";
+            case INT:
+                return "output.writeInt(" + (m.reverse ? "Integer.reverseBytes(" + value + ")" : value) + ")";
+            case LONG:
+                return "output.writeLong(" + (m.reverse ? "Long.reverseBytes(" + value + ")" : value) + ")";
+            case FLOAT:
+                return m.reverse ? "output.writeInt(Integer.reverseBytes(Float.floatToRawIntBits(" + value + ")))"
+                        : "output.writeFloat(" + value + ")";
+            case DOUBLE:
+                return m.reverse ? "output.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(" + value + ")))"
+                        : "output.writeDouble(" + value + ")";
+            case DECLARED:
+                if (!isString(type)) return null;
+                return "writeString(output, " + value + ", " + m.limit + ")";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return whether to swap the bytes of primitive elements, single bytes have no order
+     */
+    private static boolean reverse(@NotNull Member m, @NotNull TypeMirror elemType) {
+        return m.reverse && elemType.getKind() != TypeKind.BYTE && elemType.getKind() != TypeKind.BOOLEAN;
+    }
+
+    /**
+     * @return expression reading the element count of a {@code lengthRef} array, byte and short counts being unsigned
+     */
+    @NotNull
+    private String count(@NotNull Member m) {
+        @NotNull Member count = m.count;
+        switch (count.type.getKind()) {
+            case BYTE:
+                return "(" + count.getter + " & 0xFF)";
+            case SHORT:
+                return "(" + count.getter + " & 0xFFFF)";
+            default:
+                return count.getter;
+        }
+    }
+
+    private boolean isIntegral(@NotNull TypeMirror type) {
+        switch (type.getKind()) {
+            case BYTE:
+            case SHORT:
+            case CHAR:
+            case INT:
+            case LONG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isString(@NotNull TypeMirror type) {
+        return erasure(type).equals(String.class.getName());
+    }
+
+    @NotNull
+    private String erasure(@NotNull TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    /**
+     * Assigns a codec field and accessor to every nested struct type
+     */
+    private void collectCodecs(@NotNull TypeMirror type, @NotNull Map<String, String> codecs) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            collectCodecs(((ArrayType) type).getComponentType(), codecs);
+        } else if (type.getKind() == TypeKind.DECLARED && !isString(type)) {
+            @NotNull String name = erasure(type);
+            if (!codecs.containsKey(name)) codecs.put(name, "codec" + codecs.size());
+        }
+    }
+
+    /**
+     * @return true if a nullary constructor can be called from generated code
+     */
+    private boolean isInstantiable(@NotNull TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) return false;
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) return false;
+        for (ExecutableElement ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (ctor.getParameters().isEmpty()) return !ctor.getModifiers().contains(Modifier.PRIVATE);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if decoded through a constructor at runtime, see {@code StructLayout.constructor}
+     */
+    private boolean isImmutable(@NotNull TypeElement type, @NotNull List<Member> members) {
+        boolean matching = false, nullary = false;
+        for (ExecutableElement ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (getAnnotation(ctor, STRUCT_CONSTRUCTOR) != null) return true;
+            @NotNull List<? extends VariableElement> params = ctor.getParameters();
+            nullary |= params.isEmpty();
+            if (params.size() != members.size()) continue;
+            boolean same = true;
+            for (int i = 0; i < params.size(); i++) {
+                same &= processingEnv.getTypeUtils().isSameType(
+                        processingEnv.getTypeUtils().erasure(params.get(i).asType()),
+                        processingEnv.getTypeUtils().erasure(members.get(i).type));
+            }
+            matching |= same;
+        }
+        if (!matching) return false;
+        if (!nullary) return true;
+        for (Member m : members) {
+            if (m.field.getModifiers().contains(Modifier.FINAL)) return true;
+        }
+        return false;
+    }
+
+    private void checkAccessible(@NotNull TypeElement type, @NotNull PackageElement pkg) throws UnsupportedException {
+        switch (type.getNestingKind()) {
+            case LOCAL:
+            case ANONYMOUS:
+                throw new UnsupportedException("unnamed type " + type);
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            @NotNull Set<Modifier> modifiers = e.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)
+                    || (!modifiers.contains(Modifier.PUBLIC)
+                    && !processingEnv.getElementUtils().getPackageOf(e).equals(pkg))) {
+                throw new UnsupportedException("inaccessible type " + type);
+            }
+        }
+    }
+
+    private void checkType(@NotNull TypeMirror type, @NotNull PackageElement pkg) throws UnsupportedException {
+        switch (type.getKind()) {
+            case ARRAY:
+                checkType(((ArrayType) type).getComponentType(), pkg);
+                return;
+            case DECLARED:
+                if (!((DeclaredType) type).getTypeArguments().isEmpty()) {
+                    throw new UnsupportedException("generic field type " + type);
+                }
+                checkAccessible((TypeElement) ((DeclaredType) type).asElement(), pkg);
+                return;
+            default:
+                if (!type.getKind().isPrimitive()) throw new UnsupportedException("field type " + type);
+        }
+    }
+
+    @Nullable
+    private static AnnotationMirror getStructField(@NotNull Element e) {
+        return getAnnotation(e, STRUCT_FIELD);
+    }
+
+    @Nullable
+    private static AnnotationMirror getAnnotation(@NotNull Element e, @NotNull String name) {
+        for (AnnotationMirror mirror : e.getAnnotationMirrors()) {
+            @NotNull Element annotation = mirror.getAnnotationType().asElement();
+            if (((TypeElement) annotation).getQualifiedName().contentEquals(name)) return mirror;
+        }
+        return null;
+    }
+
+    @NotNull
+    private Object getValue(@NotNull AnnotationMirror mirror, @NotNull String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e
+                : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals(name)) return e.getValue().getValue();
+        }
+        throw new NoSuchElementException(name);
+    }
+
+    @NotNull
+    private static String capitalize(@NotNull String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private static class UnsupportedException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(@NotNull String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A {@code @StructField} member, and how to reach it from generated code
+     */
+    private class Member {
+
+        @NotNull
+        final VariableElement field;
+        @NotNull
+        final TypeMirror type;
+        final int index, skip, limit, length;
+        final boolean reverse, nullable, dedup;
+        /**
+         * Integral and string elements encoded as varints, from {@code varint} or {@code @StructVarint}
+         */
+        final boolean varint;
+        /**
+         * Expression reading the member
+         */
+        @NotNull
+        final String getter;
+        /**
+         * Format string assigning the member, or null if not assignable
+         */
+        @Nullable
+        final String setter;
+        @NotNull
+        final String lengthRef;
+        /**
+         * The member named by {@link #lengthRef}, once resolved
+         */
+        @Nullable
+        Member count;
+        /**
+         * Name of the {@code StringTable} field, if deduplicated
+         */
+        @Nullable
+        String strings;
+
+        Member(@NotNull TypeElement owner, @NotNull VariableElement field, @NotNull AnnotationMirror meta,
+               @NotNull PackageElement pkg) throws UnsupportedException {
+            this.field = field;
+            this.type = field.asType();
+            this.index = (Integer) getValue(meta, "index");
+            this.skip = (Integer) getValue(meta, "skip");
+            this.limit = (Integer) getValue(meta, "limit");
+            this.length = (Integer) getValue(meta, "length");
+            this.reverse = (Boolean) getValue(meta, "reverse");
+            this.nullable = (Boolean) getValue(meta, "nullable");
+            this.dedup = (Boolean) getValue(meta, "dedup");
+            this.lengthRef = (String) getValue(meta, "lengthRef");
+            @NotNull TypeMirror elemType = type;
+            while (elemType.getKind() == TypeKind.ARRAY) elemType = ((ArrayType) elemType).getComponentType();
+            switch (elemType.getKind()) {
+                case CHAR:
+                case SHORT:
+                case INT:
+                case LONG:
+                    varint = (Boolean) getValue(meta, "varint") || getAnnotation(owner, STRUCT_VARINT) != null;
+                    break;
+                case DECLARED:
+                    varint = isString(elemType)
+                            && ((Boolean) getValue(meta, "varint") || getAnnotation(owner, STRUCT_VARINT) != null);
+                    break;
+                default:
+                    varint = false;
+            }
+            @NotNull Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.STATIC)) throw new UnsupportedException("static field " + field);
+            checkType(type, pkg);
+            if (length > 0 && (type.getKind() != TypeKind.ARRAY
+                    || ((ArrayType) type).getComponentType().getKind() == TypeKind.ARRAY)) {
+                throw new UnsupportedException("length on " + field + ", only one-dimensional arrays are supported");
+            }
+            if (!lengthRef.isEmpty() && (length > 0 || type.getKind() != TypeKind.ARRAY
+                    || ((ArrayType) type).getComponentType().getKind() == TypeKind.ARRAY)) {
+                throw new UnsupportedException("lengthRef on " + field + ", only one-dimensional arrays are supported");
+            }
+            @NotNull String name = field.getSimpleName().toString();
+            if (!modifiers.contains(Modifier.PRIVATE)) {
+                getter = "instance." + name;
+                setter = modifiers.contains(Modifier.FINAL) ? null : "instance." + name + " = %s";
+            } else {
+                // Bean style, as generated for Kotlin properties
+                boolean is = name.startsWith("is") && name.length() > 2 && Character.isUpperCase(name.charAt(2));
+                @Nullable ExecutableElement get = findMethod(owner, is ? name : "get" + capitalize(name), null);
+                @Nullable ExecutableElement set = findMethod(owner, "set" + capitalize(is ? name.substring(2) : name), type);
+                if (get == null) throw new UnsupportedException("inaccessible field " + field);
+                getter = "instance." + get.getSimpleName() + "()";
+                setter = set == null ? null : "instance." + set.getSimpleName() + "(%s)";
+            }
+            if (setter == null && (type.getKind().isPrimitive() || isString(type))) {
+                throw new UnsupportedException("unassignable field " + field);
+            }
+        }
+
+        /**
+         * @param param The single parameter type, or null for no parameters
+         */
+        @Nullable
+        private ExecutableElement findMethod(@NotNull TypeElement owner, @NotNull String name, @Nullable TypeMirror param) {
+            for (ExecutableElement method : ElementFilter.methodsIn(owner.getEnclosedElements())) {
+                if (!method.getSimpleName().contentEquals(name)) continue;
+                @NotNull Set<Modifier> modifiers = method.getModifiers();
+                if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)) continue;
+                @NotNull List<? extends VariableElement> params = method.getParameters();
+                if (param == null ? params.isEmpty()
+                        : params.size() == 1 && processingEnv.getTypeUtils().isSameType(params.get(0).asType(), param)) {
+                    return method;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Indenting source builder
+     */
+    private static class Source {
+
+        @NotNull
+        private final StringBuilder sb = new StringBuilder();
+        private int indent;
+
+        void line(@NotNull String line) {
+            if (!line.isEmpty()) {
+                for (int i = 0; i < indent; i++) sb.append("    ");
+            }
+            sb.append(line).append('\n');
+        }
+
+        void open(@NotNull String line) {
+            line(line);
+            indent++;
+        }
+
+        void close(@NotNull String line) {
+            indent--;
+            line(line);
+        }
+
+        /**
+         * Closes a block and opens the next, as in {@code } else {}
+         */
+        void next(@NotNull String line) {
+            indent--;
+            line(line);
+            indent++;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
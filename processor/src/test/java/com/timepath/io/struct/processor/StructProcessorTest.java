@@ -0,0 +1,140 @@
+package com.timepath.io.struct.processor;
+
+import com.timepath.io.struct.Struct;
+import com.timepath.io.struct.StructCodec;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the processor over test sources, then the codecs it generates
+ */
+public class StructProcessorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * @param name  Qualified class name
+     * @param lines Source lines, after package and imports
+     */
+    @NotNull
+    private static JavaFileObject source(@NotNull String name, @NotNull String... lines) {
+        int dot = name.lastIndexOf('.');
+        @NotNull final StringBuilder sb = new StringBuilder()
+                .append("package ").append(name.substring(0, dot)).append(";\n")
+                .append("import com.timepath.io.struct.*;\n");
+        for (String line : lines) sb.append(line).append('\n');
+        return new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @NotNull
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return sb;
+            }
+        };
+    }
+
+    /**
+     * Compiles with the processor, failing on errors
+     *
+     * @return a loader for the compiled and generated classes
+     */
+    @NotNull
+    private ClassLoader compile(@NotNull JavaFileObject... sources) throws IOException {
+        @NotNull JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        @NotNull File out = tmp.newFolder();
+        @NotNull DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        @NotNull JavaCompiler.CompilationTask task = javac.getTask(null, null, diagnostics,
+                Arrays.asList("-d", out.getPath(), "-s", out.getPath(), "-cp", System.getProperty("java.class.path")),
+                null, Arrays.asList(sources));
+        task.setProcessors(Collections.singletonList(new StructProcessor()));
+        assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+        return new URLClassLoader(new URL[]{out.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    @NotNull
+    private static Object get(@NotNull Object instance, @NotNull String field) throws ReflectiveOperationException {
+        return instance.getClass().getField(field).get(instance);
+    }
+
+    @Test
+    public void testImmutableMember() throws Exception {
+        @NotNull ClassLoader loader = compile(
+                source("demo.Frozen",
+                        "public class Frozen {",
+                        "    @StructField(index = 0) public final int x;",
+                        "    public Frozen(int x) { this.x = x; }",
+                        "}"),
+                source("demo.Outer",
+                        "public class Outer {",
+                        "    @StructField(index = 0) public Frozen one = new Frozen(0);",
+                        "    @StructField(index = 1, length = 2) public Frozen[] many;",
+                        "}"));
+        @NotNull Class<?> type = loader.loadClass("demo.Outer");
+        assertEquals(type.getName() + StructCodec.GENERATED_SUFFIX, Struct.codec(type).getClass().getName());
+        @NotNull Object outer = type.newInstance();
+        Struct.unpack(outer, new byte[]{0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3});
+        assertEquals(1, get(get(outer, "one"), "x"));
+        @NotNull Object[] many = (Object[]) get(outer, "many");
+        assertEquals(2, get(many[0], "x"));
+        assertEquals(3, get(many[1], "x"));
+    }
+
+    @Test
+    public void testReverseBytes() throws Exception {
+        @NotNull ClassLoader loader = compile(
+                source("demo.Reversed",
+                        "public class Reversed {",
+                        "    @StructField(index = 0, reverse = true) public byte[] bytes = new byte[2];",
+                        "    @StructField(index = 1, reverse = true) public boolean[] flags = new boolean[1];",
+                        "    @StructField(index = 2, reverse = true) public short[] shorts = new short[1];",
+                        "}"));
+        @NotNull Class<?> type = loader.loadClass("demo.Reversed");
+        assertEquals(type.getName() + StructCodec.GENERATED_SUFFIX, Struct.codec(type).getClass().getName());
+        @NotNull Object reversed = type.newInstance();
+        @NotNull byte[] bytes = {1, 2, 1, 3, 0};
+        Struct.unpack(reversed, bytes);
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) get(reversed, "bytes"));
+        assertArrayEquals(new short[]{3}, (short[]) get(reversed, "shorts"));
+        assertArrayEquals(bytes, Struct.pack(reversed));
+    }
+
+    @Test
+    public void testRecursive() throws Exception {
+        @NotNull ClassLoader loader = compile(
+                source("demo.Node",
+                        "public class Node {",
+                        "    @StructField(index = 0) public byte id;",
+                        "    @StructField(index = 1) public byte count;",
+                        "    @StructField(index = 2, lengthRef = \"count\") public Node[] children = new Node[0];",
+                        "}"));
+        @NotNull Class<?> type = loader.loadClass("demo.Node");
+        assertEquals(type.getName() + StructCodec.GENERATED_SUFFIX, Struct.codec(type).getClass().getName());
+        @NotNull Object node = type.newInstance();
+        @NotNull byte[] bytes = {1, 2, 2, 0, 3, 0};
+        Struct.unpack(node, bytes);
+        @NotNull Object[] children = (Object[]) get(node, "children");
+        assertEquals(2, children.length);
+        assertEquals((byte) 3, get(children[1], "id"));
+        assertArrayEquals(bytes, Struct.pack(node));
+    }
+}
@@ -0,0 +1,65 @@
+package com.timepath.io.struct;
+
+/**
+ * Representative struct layouts for {@link StructBenchmark}
+ *
+ * @author TimePath
+ */
+public class Layouts {
+
+    public static class Primitives {
+
+        @StructField(index = 0)
+        public boolean b;
+        @StructField(index = 1)
+        public byte by = 1;
+        @StructField(index = 2)
+        public short s = 2;
+        @StructField(index = 3)
+        public char c = '3';
+        @StructField(index = 4)
+        public int i = 4;
+        @StructField(index = 5)
+        public long l = 5;
+        @StructField(index = 6)
+        public float f = 6;
+        @StructField(index = 7)
+        public double d = 7;
+    }
+
+    public static class Vec {
+
+        @StructField(index = 0)
+        public float x = 1, y = 2, z = 3;
+    }
+
+    public static class Nested {
+
+        @StructField(index = 0)
+        public int id = 1;
+        @StructField(index = 1)
+        public Vec position = new Vec();
+        @StructField(index = 2)
+        public Vec velocity = new Vec();
+        @StructField(index = 3)
+        public Vec[] path = {new Vec(), new Vec(), new Vec(), new Vec()};
+    }
+
+    public static class Arrays {
+
+        @StructField(index = 0)
+        public int[] ints = new int[4096];
+        @StructField(index = 1)
+        public double[] doubles = new double[1024];
+    }
+
+    public static class Strings {
+
+        @StructField(index = 0, limit = 32)
+        public String fixed = "fixed size";
+        @StructField(index = 1)
+        public String terminated = "NUL terminated";
+        @StructField(index = 2, limit = 16, dedup = true)
+        public String repeated = "repeated";
+    }
+}
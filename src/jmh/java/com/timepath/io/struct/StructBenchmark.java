@@ -0,0 +1,107 @@
+package com.timepath.io.struct;
+
+import com.timepath.io.OrderedInputStream;
+import com.timepath.io.OrderedOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link Struct} entry points over each of {@link Layouts}.
+ * Run with {@code gradle jmh}, the gc profiler reports allocation per operation.
+ *
+ * @author TimePath
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StructBenchmark {
+
+    @Param({"Primitives", "Nested", "Arrays", "Strings"})
+    public String layout;
+
+    private Class<?> type;
+    private Object instance;
+    /**
+     * Decoded into, so reading does not measure instantiation
+     */
+    private Object out;
+    private byte[] bytes;
+    private ByteBuffer buffer;
+    private ByteArrayOutputStream baos;
+
+    @Setup
+    public void setup() throws Exception {
+        type = Class.forName(Layouts.class.getName() + "$" + layout);
+        instance = Struct.codec(type).instantiate();
+        out = Struct.codec(type).instantiate();
+        bytes = Struct.pack(instance);
+        buffer = ByteBuffer.allocateDirect(bytes.length);
+        // Same contents as bytes, for unpackBuffer
+        buffer.put(bytes).clear();
+        baos = new ByteArrayOutputStream(bytes.length);
+    }
+
+    @NotNull
+    private OrderedInputStream input() throws IOException {
+        return new OrderedInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public byte[] packBytes() {
+        return Struct.pack(instance);
+    }
+
+    @Benchmark
+    public ByteBuffer packBuffer() {
+        Struct.pack(instance, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public int packStream() throws Exception {
+        baos.reset();
+        new OrderedOutputStream(baos).writeStruct(instance);
+        return baos.size();
+    }
+
+    @Benchmark
+    public Object unpackBytes() {
+        Struct.unpack(out, bytes);
+        return out;
+    }
+
+    @Benchmark
+    public Object unpackBuffer() {
+        Struct.unpack(out, buffer, 0);
+        return out;
+    }
+
+    @Benchmark
+    public Object unpackStream() throws Exception {
+        return input().readStruct(out);
+    }
+
+    @Benchmark
+    public Object readStruct() throws Exception {
+        return input().readStruct(type);
+    }
+
+    @Benchmark
+    public int sizeofInstance() {
+        return Struct.sizeof(instance);
+    }
+
+    @Benchmark
+    public int sizeofClass() {
+        return Struct.sizeof(type);
+    }
+}
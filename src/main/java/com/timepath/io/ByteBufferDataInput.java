@@ -0,0 +1,175 @@
+package com.timepath.io;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link DataInput} reading straight out of a {@link ByteBuffer} in the buffer's byte order.
+ * Keeps its own cursor, so the buffer's position is left as it was.
+ * Bulk transfers briefly move the position, give each thread its own {@link ByteBuffer#duplicate()}.
+ *
+ * @author TimePath
+ */
+public class ByteBufferDataInput implements DataInput {
+
+    @NotNull
+    private final ByteBuffer buf;
+    private int position;
+
+    /**
+     * Starts reading at the buffer's current position
+     */
+    public ByteBufferDataInput(@NotNull ByteBuffer buf) {
+        this(buf, buf.position());
+    }
+
+    /**
+     * @param position Absolute offset to start reading at
+     */
+    public ByteBufferDataInput(@NotNull ByteBuffer buf, int position) {
+        this.buf = buf;
+        this.position = position;
+    }
+
+    @NotNull
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    @NotNull
+    public ByteOrder order() {
+        return buf.order();
+    }
+
+    /**
+     * @return the absolute offset of the next read
+     */
+    public int position() {
+        return position;
+    }
+
+    public void position(int position) {
+        this.position = position;
+    }
+
+    public int remaining() {
+        return buf.limit() - position;
+    }
+
+    /**
+     * @return the offset to read n bytes from
+     * @throws EOFException if fewer than n bytes remain
+     */
+    private int advance(int n) throws EOFException {
+        int p = position;
+        if (n > buf.limit() - p) throw new EOFException();
+        position = p + n;
+        return p;
+    }
+
+    @Override
+    public void readFully(@NotNull byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(@NotNull byte[] b, int off, int len) throws IOException {
+        int p = advance(len);
+        int original = buf.position();
+        buf.position(p);
+        buf.get(b, off, len);
+        buf.position(original);
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        n = Math.max(0, Math.min(n, remaining()));
+        position += n;
+        return n;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return buf.get(advance(1)) != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return buf.get(advance(1));
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return buf.get(advance(1)) & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return buf.getShort(advance(2));
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return buf.getShort(advance(2)) & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return buf.getChar(advance(2));
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return buf.getInt(advance(4));
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return buf.getLong(advance(8));
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return buf.getFloat(advance(4));
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return buf.getDouble(advance(8));
+    }
+
+    /**
+     * Reads bytes as chars up to a line terminator, as {@link java.io.DataInputStream#readLine} does
+     *
+     * @return the line without its terminator, or null if there were no bytes left
+     */
+    @Nullable
+    @Override
+    public String readLine() throws IOException {
+        if (remaining() <= 0) return null;
+        @NotNull StringBuilder sb = new StringBuilder();
+        while (remaining() > 0) {
+            int c = buf.get(position++) & 0xFF;
+            if (c == '\n') break;
+            if (c == '\r') {
+                if (remaining() > 0 && buf.get(position) == '\n') position++;
+                break;
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    @NotNull
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+}
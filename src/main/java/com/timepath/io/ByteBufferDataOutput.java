@@ -0,0 +1,180 @@
+package com.timepath.io;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link DataOutput} writing straight into a {@link ByteBuffer} in the buffer's byte order.
+ * Keeps its own cursor, so the buffer's position is left as it was.
+ * Bulk transfers briefly move the position, give each thread its own {@link ByteBuffer#duplicate()}.
+ *
+ * @author TimePath
+ */
+public class ByteBufferDataOutput implements DataOutput {
+
+    @NotNull
+    private final ByteBuffer buf;
+    private int position;
+
+    /**
+     * Starts writing at the buffer's current position
+     */
+    public ByteBufferDataOutput(@NotNull ByteBuffer buf) {
+        this(buf, buf.position());
+    }
+
+    /**
+     * @param position Absolute offset to start writing at
+     */
+    public ByteBufferDataOutput(@NotNull ByteBuffer buf, int position) {
+        this.buf = buf;
+        this.position = position;
+    }
+
+    @NotNull
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    @NotNull
+    public ByteOrder order() {
+        return buf.order();
+    }
+
+    /**
+     * @return the absolute offset of the next write
+     */
+    public int position() {
+        return position;
+    }
+
+    public void position(int position) {
+        this.position = position;
+    }
+
+    public int remaining() {
+        return buf.limit() - position;
+    }
+
+    /**
+     * @return the offset to write n bytes to
+     * @throws BufferOverflowException if fewer than n bytes remain
+     */
+    private int advance(int n) {
+        int p = position;
+        if (n > buf.limit() - p) throw new BufferOverflowException();
+        position = p + n;
+        return p;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buf.put(advance(1), (byte) b);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+        int p = advance(len);
+        int original = buf.position();
+        buf.position(p);
+        buf.put(b, off, len);
+        buf.position(original);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) throws IOException {
+        buf.put(advance(1), v ? (byte) 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) throws IOException {
+        buf.put(advance(1), (byte) v);
+    }
+
+    @Override
+    public void writeShort(int v) throws IOException {
+        buf.putShort(advance(2), (short) v);
+    }
+
+    @Override
+    public void writeChar(int v) throws IOException {
+        buf.putChar(advance(2), (char) v);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        buf.putInt(advance(4), v);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        buf.putLong(advance(8), v);
+    }
+
+    @Override
+    public void writeFloat(float v) throws IOException {
+        buf.putFloat(advance(4), v);
+    }
+
+    @Override
+    public void writeDouble(double v) throws IOException {
+        buf.putDouble(advance(8), v);
+    }
+
+    @Override
+    public void writeBytes(@NotNull String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(@NotNull String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes modified UTF-8 as {@link java.io.DataOutputStream#writeUTF} does, the length in the buffer's byte order
+     * as {@link ByteBufferDataInput#readUTF} reads it
+     *
+     * @throws UTFDataFormatException if longer than 65535 bytes encoded, nothing is written
+     */
+    @Override
+    public void writeUTF(@NotNull String s) throws IOException {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            len += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        if (len > 0xFFFF) throw new UTFDataFormatException("encoded string too long: " + len + " bytes");
+        if (2 + len > remaining()) throw new BufferOverflowException();
+        writeShort(len);
+        int p = advance(len);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put(p++, (byte) c);
+            } else if (c <= 0x07FF) {
+                buf.put(p++, (byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buf.put(p++, (byte) (0x80 | (c & 0x3F)));
+            } else {
+                buf.put(p++, (byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buf.put(p++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put(p++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,18 +15,22 @@ public class OrderedInputStream extends InputStream implements DataInput {
     private static final Logger LOG = Logger.getLogger(OrderedInputStream.class.getName());
     private final byte[] arr = new byte[8];
     private final ByteBuffer buf = ByteBuffer.wrap(arr);
+    /**
+     * Reused by {@link #readString(int)}
+     */
+    @NotNull
+    private byte[] str = new byte[64];
+    /**
+     * Counts every byte taken from the source, however it is read
+     */
+    @NotNull
+    private final Counter counter;
     @NotNull
     private final DataInputStream in;
-    private final int limit;
-    private int position;
 
     public OrderedInputStream(@NotNull InputStream in) throws IOException {
-        this(new DataInputStream(in));
-    }
-
-    private OrderedInputStream(@NotNull DataInputStream in) throws IOException {
-        this.in = in;
-        limit = in.available();
+        counter = new Counter(in);
+        this.in = new DataInputStream(counter);
     }
 
     @NotNull
@@ -39,9 +44,12 @@ public class OrderedInputStream extends InputStream implements DataInput {
 
     @Override
     public int read() throws IOException {
-        int b = in.read();
-        position += 1;
-        return b;
+        return in.read();
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        return in.read(b, off, len);
     }
 
     @Override
@@ -94,72 +102,79 @@ public class OrderedInputStream extends InputStream implements DataInput {
      */
     @NotNull
     public String readString(int min) throws IOException {
-        @NotNull ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int len = 0;
         int c;
         loop:
         while (true) {
             switch (c = in.read()) {
                 case 0:
                     break loop;
+                case -1:
+                    throw new EOFException();
                 default:
-                    baos.write(c);
+                    if (len == str.length) str = Arrays.copyOf(str, len * 2);
+                    str[len++] = (byte) c;
                     break;
             }
         }
-        int skip = min - (baos.size() + 1);
+        int skip = min - (len + 1);
         if (skip > 0) {
             LOG.log(Level.FINE, "Skipping {0}", skip);
-            readFully(new byte[skip]);
-            position += skip;
+            skipFully(skip);
         }
-        position += baos.size();
-        return new String(baos.toByteArray());
+        return new String(str, 0, len);
     }
 
     @Override
     public void readFully(@NotNull byte[] b) throws IOException {
         in.readFully(b);
-        position += b.length;
     }
 
     @Override
     public void readFully(@NotNull byte[] b, int off, int len) throws IOException {
         in.readFully(b, off, len);
-        position += len;
+    }
+
+    /**
+     * Skips exactly n bytes without allocating
+     *
+     * @throws EOFException if the stream ends first
+     */
+    private void skipFully(int n) throws IOException {
+        while (n > 0) {
+            int b = skipBytes(n);
+            if (b > 0) {
+                n -= b;
+            } else {
+                readByte(); // Throws at EOF
+                n--;
+            }
+        }
     }
 
     @Override
     public int skipBytes(int n) throws IOException {
-        int b = in.skipBytes(n);
-        position += b;
-        return b;
+        return in.skipBytes(n);
     }
 
     @Override
     public boolean readBoolean() throws IOException {
-        boolean b = in.readBoolean();
-        position += 1;
-        return b;
+        return in.readBoolean();
     }
 
     @Override
     public byte readByte() throws IOException {
-        byte b = in.readByte();
-        position += 1;
-        return b;
+        return in.readByte();
     }
 
     @Override
     public int readUnsignedByte() throws IOException {
-        int b = in.readUnsignedByte();
-        position += 1;
-        return b;
+        return in.readUnsignedByte();
     }
 
     @Override
     public short readShort() throws IOException {
         in.readFully(arr, 0, 2);
-        position += 2;
         buf.rewind();
         return buf.getShort();
     }
@@ -167,7 +182,6 @@ public class OrderedInputStream extends InputStream implements DataInput {
     @Override
     public int readUnsignedShort() throws IOException {
         in.readFully(arr, 0, 2);
-        position += 2;
         buf.rewind();
         return buf.getShort();
     }
@@ -175,7 +189,6 @@ public class OrderedInputStream extends InputStream implements DataInput {
     @Override
     public char readChar() throws IOException {
         in.readFully(arr, 0, 2);
-        position += 2;
         buf.rewind();
         return buf.getChar();
     }
@@ -183,7 +196,6 @@ public class OrderedInputStream extends InputStream implements DataInput {
     @Override
     public int readInt() throws IOException {
         in.readFully(arr, 0, 4);
-        position += 4;
         buf.rewind();
         return buf.getInt();
     }
@@ -191,7 +203,6 @@ public class OrderedInputStream extends InputStream implements DataInput {
     @Override
     public long readLong() throws IOException {
         in.readFully(arr, 0, 8);
-        position += 8;
         buf.rewind();
         return buf.getLong();
     }
@@ -199,7 +210,6 @@ public class OrderedInputStream extends InputStream implements DataInput {
     @Override
     public float readFloat() throws IOException {
         in.readFully(arr, 0, 4);
-        position += 4;
         buf.rewind();
         return buf.getFloat();
     }
@@ -207,7 +217,6 @@ public class OrderedInputStream extends InputStream implements DataInput {
     @Override
     public double readDouble() throws IOException {
         in.readFully(arr, 0, 8);
-        position += 8;
         buf.rewind();
         return buf.getDouble();
     }
@@ -233,9 +242,7 @@ public class OrderedInputStream extends InputStream implements DataInput {
 
     @NotNull
     public <S> S readStruct(@NotNull Class<S> struct) throws IOException, InstantiationException, IllegalAccessException {
-        @NotNull S instance = struct.newInstance();
-        Struct.unpack(instance, this);
-        return instance;
+        return Struct.codec(struct).decode(this);
     }
 
     /**
@@ -249,10 +256,53 @@ public class OrderedInputStream extends InputStream implements DataInput {
     }
 
     /**
-     * @return the position
+     * @return the number of bytes read since construction, less any {@link #reset()}
      * @throws java.io.IOException
      */
     public int position() throws IOException {
-        return limit - in.available(); // XXX: FIXME
+        return (int) counter.count;
+    }
+
+    private static class Counter extends FilterInputStream {
+
+        long count;
+        private long mark;
+
+        Counter(@NotNull InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            super.mark(readlimit);
+            mark = count;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            count = mark;
+        }
     }
 }
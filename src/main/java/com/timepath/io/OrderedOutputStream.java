@@ -50,7 +50,7 @@ public class OrderedOutputStream extends OutputStream implements DataOutput {
 
     @Override
     public void write(@NotNull byte[] b, int off, int len) throws IOException {
-        out.write(b);
+        out.write(b, off, len);
         position += len;
     }
 
@@ -65,7 +65,7 @@ public class OrderedOutputStream extends OutputStream implements DataOutput {
     }
 
     public <S> void writeStruct(@NotNull Class<S> struct) throws IOException, InstantiationException, IllegalAccessException {
-        @NotNull S instance = struct.newInstance();
+        @NotNull S instance = Struct.codec(struct).instantiate();
         Struct.pack(instance, this);
     }
 
@@ -0,0 +1,230 @@
+package com.timepath.io.struct;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Typed access to a single field through {@link MethodHandle}s resolved once.
+ * Unlike {@link Field#get}/{@link Field#set} there is no access check or boxing per call.
+ *
+ * @author TimePath
+ */
+class FieldAccessor {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    @NotNull
+    private final Field field;
+    /**
+     * (Object)T, where T is the field type if primitive, Object otherwise
+     */
+    @NotNull
+    private final MethodHandle getter;
+    /**
+     * (Object, T)void, or null if the field cannot be written to
+     */
+    @Nullable
+    private final MethodHandle setter;
+    /**
+     * (Object)Object, boxing primitives
+     */
+    @NotNull
+    private final MethodHandle boxedGetter;
+    /**
+     * (Object, Object)void, unboxing primitives. Null if the field cannot be written to
+     */
+    @Nullable
+    private final MethodHandle boxedSetter;
+
+    FieldAccessor(@NotNull Field field) throws IllegalAccessException {
+        this.field = field;
+        field.setAccessible(true);
+        @NotNull Class<?> type = field.getType().isPrimitive() ? field.getType() : Object.class;
+        @NotNull MethodHandle get = LOOKUP.unreflectGetter(field);
+        getter = get.asType(MethodType.methodType(type, Object.class));
+        boxedGetter = get.asType(MethodType.methodType(Object.class, Object.class));
+        @Nullable MethodHandle set;
+        try {
+            set = LOOKUP.unreflectSetter(field);
+        } catch (IllegalAccessException ignored) {
+            set = null;
+        }
+        setter = set == null ? null : set.asType(MethodType.methodType(void.class, Object.class, type));
+        boxedSetter = set == null ? null : set.asType(MethodType.methodType(void.class, Object.class, Object.class));
+    }
+
+    @NotNull
+    static RuntimeException propagate(@NotNull Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new UndeclaredThrowableException(t);
+    }
+
+    @NotNull
+    public Field getField() {
+        return field;
+    }
+
+    @NotNull
+    private MethodHandle setter() {
+        if (setter == null) throw new IllegalStateException("Cannot write to " + field);
+        return setter;
+    }
+
+    /**
+     * Reads any field, boxing primitives. Prefer the typed getters for those.
+     */
+    @Nullable
+    public Object get(@NotNull Object instance) {
+        try {
+            return (Object) boxedGetter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    /**
+     * Writes any field, unboxing primitives. Prefer the typed setters for those.
+     */
+    public void set(@NotNull Object instance, @Nullable Object value) {
+        if (boxedSetter == null) throw new IllegalStateException("Cannot write to " + field);
+        try {
+            boxedSetter.invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public boolean getBoolean(@NotNull Object instance) {
+        try {
+            return (boolean) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setBoolean(@NotNull Object instance, boolean value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public byte getByte(@NotNull Object instance) {
+        try {
+            return (byte) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setByte(@NotNull Object instance, byte value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public char getChar(@NotNull Object instance) {
+        try {
+            return (char) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setChar(@NotNull Object instance, char value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public short getShort(@NotNull Object instance) {
+        try {
+            return (short) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setShort(@NotNull Object instance, short value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public int getInt(@NotNull Object instance) {
+        try {
+            return (int) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setInt(@NotNull Object instance, int value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public long getLong(@NotNull Object instance) {
+        try {
+            return (long) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setLong(@NotNull Object instance, long value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public float getFloat(@NotNull Object instance) {
+        try {
+            return (float) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setFloat(@NotNull Object instance, float value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public double getDouble(@NotNull Object instance) {
+        try {
+            return (double) getter.invokeExact(instance);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    public void setDouble(@NotNull Object instance, double value) {
+        try {
+            setter().invokeExact(instance, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+}
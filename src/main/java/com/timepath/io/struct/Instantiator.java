@@ -0,0 +1,101 @@
+package com.timepath.io.struct;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+
+/**
+ * Creates instances through the nullary constructor, or one taking every member, resolved once into a
+ * {@link MethodHandle}.
+ *
+ * @author TimePath
+ */
+class Instantiator {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    @NotNull
+    private final Class<?> type;
+    /**
+     * ()Object, (Object[])Object if taking arguments, or null if there is no usable constructor
+     */
+    @Nullable
+    private final MethodHandle ctor;
+    /**
+     * Number of arguments, -1 for the nullary constructor
+     */
+    private final int arity;
+    @Nullable
+    private final Throwable cause;
+
+    Instantiator(@NotNull Class<?> type) {
+        this.type = type;
+        @Nullable MethodHandle mh = null;
+        @Nullable Throwable t = null;
+        try {
+            @NotNull Constructor<?> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            mh = LOOKUP.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+            t = e;
+        }
+        ctor = mh;
+        cause = t;
+        arity = -1;
+    }
+
+    /**
+     * @param c A constructor taking every member, see {@link StructConstructor}
+     */
+    Instantiator(@NotNull Constructor<?> c) {
+        this.type = c.getDeclaringClass();
+        this.arity = c.getParameterTypes().length;
+        @Nullable MethodHandle mh = null;
+        @Nullable Throwable t = null;
+        try {
+            c.setAccessible(true);
+            mh = LOOKUP.unreflectConstructor(c)
+                    .asSpreader(Object[].class, arity)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        } catch (IllegalAccessException | SecurityException e) {
+            t = e;
+        }
+        ctor = mh;
+        cause = t;
+    }
+
+    @NotNull
+    public Object newInstance() throws InstantiationException {
+        if (arity >= 0) throw new InstantiationException(type + " is immutable");
+        if (ctor == null) {
+            InstantiationException ex = new InstantiationException("Cannot instantiate " + type);
+            ex.initCause(cause);
+            throw ex;
+        }
+        try {
+            return (Object) ctor.invokeExact();
+        } catch (Throwable t) {
+            throw FieldAccessor.propagate(t);
+        }
+    }
+
+    /**
+     * @param args One per member
+     */
+    @NotNull
+    public Object newInstance(@NotNull Object[] args) throws InstantiationException {
+        if (ctor == null || arity < 0) {
+            InstantiationException ex = new InstantiationException("Cannot instantiate " + type);
+            ex.initCause(cause);
+            throw ex;
+        }
+        try {
+            return (Object) ctor.invokeExact(args);
+        } catch (Throwable t) {
+            throw FieldAccessor.propagate(t);
+        }
+    }
+}
@@ -44,42 +44,40 @@ public class BitBuffer(
         bPos = position / 8
     }
 
-    @Suppress("NOTHING_TO_INLINE") inline
-    private operator fun Byte.get(n: Int) = toInt() and (1 shl n) != 0
-
-    @Suppress("NOTHING_TO_INLINE") inline
-    private operator fun Long.get(n: Int) = this and (1L shl n) != 0L
-
-    @Suppress("NOTHING_TO_INLINE") inline
-    private fun Byte.withBit(n: Int, b: Boolean) = when {
-        b -> (toInt() or (1 shl n)).toByte()
-        else -> (toInt() and (1 shl n).inv()).toByte()
-    }
-
-    @Suppress("NOTHING_TO_INLINE") inline
-    private fun Long.withBit(n: Int, b: Boolean) = when {
-        b -> (this or (1L shl n))
-        else -> (this and (1L shl n).inv())
-    }
-
+    /**
+     * Reads up to 64 bits, least significant first. Consumes as many bits of the current byte as possible per step
+     */
     public fun getBits(n: Int): Long {
         if (n == 0) return 0
         var data = 0L
-        repeat(n) {
-            val i = position++ % 8 // Bit offset in current byte
+        var done = 0
+        while (done < n) {
+            val i = position % 8 // Bit offset in current byte
             if (i == 0) next() // Fill byte on boundary read
-            data = data.withBit(it, b[i])
+            val take = Math.min(8 - i, n - done)
+            val chunk = (b.toInt() ushr i) and ((1 shl take) - 1)
+            data = data or (chunk.toLong() shl done)
+            done += take
+            position += take
         }
         return data
     }
 
+    /**
+     * Writes up to 64 bits, least significant first. Fills as many bits of the current byte as possible per step
+     */
     public fun putBits(n: Int, data: Long) {
         if (n == 0) return
-        repeat(n) {
-            val i = position++ % 8 // Bit offset in current byte
+        var done = 0
+        while (done < n) {
+            val i = position % 8 // Bit offset in current byte
             if (i == 0) next() // Fill byte on boundary read
-            b = b.withBit(i, data[it])
+            val take = Math.min(8 - i, n - done)
+            val mask = ((1 shl take) - 1) shl i
+            b = ((b.toInt() and mask.inv()) or (((data ushr done).toInt() shl i) and mask)).toByte()
             source.put(bPos, b)
+            done += take
+            position += take
         }
     }
 
@@ -110,16 +108,18 @@ public class BitBuffer(
 
     /**
      * @param limit never read more than this many bytes. If -1, up to the first terminating null byte ('\0')
-     * @param exact always read to the limit
+     * @param exact always read to the limit, counting the terminating null byte, as fixed size strings are packed
      */
     public fun getString(limit: Int = -1, exact: Boolean = false): String {
         val baos = ByteArrayOutputStream()
-        while (baos.size() != limit) {
+        var read = 0
+        while (read != limit) {
             val c = getByte().toInt()
+            read++
             if (c == 0) break
             baos.write(c)
         }
-        if (exact && limit > 0) get(ByteArray(limit - baos.size())) // Read and discard the remainder
+        if (exact && limit > 0) get(ByteArray(limit - read)) // Read and discard the remainder
         return String(baos.toByteArray(), StandardCharsets.UTF_8)
     }
 
@@ -0,0 +1,208 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import java.io.Closeable
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.AsynchronousFileChannel
+import java.nio.channels.CompletionHandler
+import java.util.ArrayList
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.function.Consumer
+
+/**
+ * Bounded pool of direct buffers for [AsyncStructReader], safe to share between readers and threads
+ *
+ * @param capacity Maximum number of idle buffers kept
+ * @author TimePath
+ */
+public class DirectBufferPool @JvmOverloads constructor(public val bufferSize: Int = 1 shl 20, capacity: Int = 64) {
+
+    public companion object {
+
+        /**
+         * Pool of 1 MiB buffers used by default
+         */
+        @JvmField
+        public val SHARED: DirectBufferPool = DirectBufferPool()
+    }
+
+    private val idle = ArrayBlockingQueue<ByteBuffer>(capacity)
+
+    /**
+     * @return a cleared idle buffer, or a new one if there are none
+     */
+    public fun acquire(): ByteBuffer = idle.poll()?.apply { clear() } ?: ByteBuffer.allocateDirect(bufferSize)
+
+    /**
+     * Returns a buffer to the pool, the caller must not use it again
+     */
+    public fun release(buf: ByteBuffer) {
+        idle.offer(buf)
+    }
+}
+
+/**
+ * Reads back to back records from an [AsynchronousFileChannel] without blocking a thread per file.
+ * Each buffer's worth of records is decoded as soon as it arrives and delivered as a batch, while the read for the
+ * next buffer is already in flight. Decoding runs on [executor], one buffer at a time per reader, so a single thread
+ * can keep many files in flight.
+ *
+ * ```
+ * val channel = AsynchronousFileChannel.open(path, setOf(StandardOpenOption.READ), executor)
+ * AsyncStructReader(Entry::class.java, channel, ByteOrder.LITTLE_ENDIAN, executor = executor)
+ *         .read(Consumer { batch -> ... })
+ *         .thenAccept { count -> channel.close() }
+ * ```
+ *
+ * A record cut short by the end of the file is an error. Records may span buffers, the partial record is carried
+ * into the space kept free at the start of the next buffer, so larger records cost a copy.
+ *
+ * @param buffers Where to take read buffers from
+ * @param executor Where to decode and deliver batches
+ * @author TimePath
+ */
+public class AsyncStructReader<T : Any> @JvmOverloads constructor(public val type: Class<T>,
+                                                                  private val channel: AsynchronousFileChannel,
+                                                                  private val order: ByteOrder = ByteOrder.BIG_ENDIAN,
+                                                                  private val buffers: DirectBufferPool = DirectBufferPool.SHARED,
+                                                                  private val executor: Executor = ForkJoinPool.commonPool())
+: Closeable {
+
+    private val codec = Struct.codec(type)
+
+    /**
+     * Space at the start of each buffer for the end of the previous one
+     */
+    private val headroom = Math.min(64 * 1024, buffers.bufferSize / 4)
+
+    private val started = AtomicBoolean()
+
+    private class Chunk(val buf: ByteBuffer, val n: Int)
+
+    /**
+     * Bytes of a partial record at the end of the previous buffer. Only touched by one decode at a time
+     */
+    private var carry = ByteArray(0)
+    private var carryLength = 0
+    private var count = 0L
+
+    /**
+     * Reads the whole file, may only be called once
+     *
+     * @param batches Receives the records of each buffer in file order, not concurrently
+     * @return the number of records, completing after the last batch
+     */
+    public fun read(batches: Consumer<List<T>>): CompletableFuture<Long> {
+        if (!started.compareAndSet(false, true)) throw IllegalStateException("Already read")
+        val result = CompletableFuture<Long>()
+        consume(read(0), 0, batches, result)
+        return result
+    }
+
+    /**
+     * Reads the whole file, may only be called once
+     *
+     * @return all records, in file order
+     */
+    public fun readAll(): CompletableFuture<List<T>> {
+        val all = ArrayList<T>()
+        return read(Consumer { all.addAll(it) }).thenApply { all }
+    }
+
+    private fun read(position: Long): CompletableFuture<Chunk> {
+        val future = CompletableFuture<Chunk>()
+        val buf = buffers.acquire()
+        buf.clear()
+        buf.position(headroom)
+        channel.read(buf, position, null, object : CompletionHandler<Int, Any?> {
+            override fun completed(n: Int, attachment: Any?) {
+                future.complete(Chunk(buf, n))
+            }
+
+            override fun failed(t: Throwable, attachment: Any?) {
+                buffers.release(buf)
+                future.completeExceptionally(t)
+            }
+        })
+        return future
+    }
+
+    /**
+     * Decodes a chunk once read, after issuing the read for the one following it
+     *
+     * @param position File offset of the chunk
+     */
+    private fun consume(chunk: CompletableFuture<Chunk>, position: Long,
+                        batches: Consumer<List<T>>, result: CompletableFuture<Long>) {
+        chunk.thenAcceptAsync(Consumer { c ->
+            var next: CompletableFuture<Chunk>? = null
+            try {
+                if (c.n < 0) {
+                    buffers.release(c.buf)
+                    if (carryLength > 0) throw EOFException("Truncated ${type.name} record")
+                    result.complete(count)
+                } else {
+                    next = read(position + c.n)
+                    val batch = try {
+                        decode(c)
+                    } finally {
+                        buffers.release(c.buf)
+                    }
+                    count += batch.size
+                    if (batch.isNotEmpty()) batches.accept(batch)
+                    consume(next, position + c.n, batches, result)
+                }
+            } catch (t: Throwable) {
+                next?.thenAccept { buffers.release(it.buf) }
+                result.completeExceptionally(t)
+            }
+        }, executor).exceptionally {
+            result.completeExceptionally(it)
+            null
+        }
+    }
+
+    private fun decode(c: Chunk): List<T> {
+        var data = c.buf.duplicate().order(order)
+        var start = headroom - carryLength
+        var end = headroom + c.n
+        if (carryLength <= headroom) {
+            data.position(start)
+            data.put(carry, 0, carryLength)
+        } else {
+            // Too large for the headroom
+            val src = c.buf.duplicate()
+            src.limit(end).position(headroom)
+            data = ByteBuffer.allocate(carryLength + c.n).order(order)
+            data.put(carry, 0, carryLength).put(src)
+            start = 0
+            end = data.capacity()
+        }
+        data.limit(end)
+        val input = ByteBufferDataInput(data, start)
+        val batch = ArrayList<T>()
+        carryLength = 0
+        while (input.position() < end) {
+            val mark = input.position()
+            try {
+                batch.add(codec.decode(input))
+            } catch (e: EOFException) {
+                // Record spans the end of the buffer
+                carryLength = end - mark
+                if (carry.size < carryLength) carry = ByteArray(Math.max(carryLength, carry.size * 2))
+                data.position(mark)
+                data.get(carry, 0, carryLength)
+                break
+            }
+        }
+        return batch
+    }
+
+    override fun close() = channel.close()
+}
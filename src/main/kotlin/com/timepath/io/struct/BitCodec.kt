@@ -0,0 +1,327 @@
+package com.timepath.io.struct
+
+import com.timepath.io.BitBuffer
+import java.nio.charset.StandardCharsets
+
+/**
+ * Reads and writes a struct at bit granularity against a [BitBuffer], least significant bit first.
+ * Members take [StructField.bits] bits if set, otherwise their natural width. Runs of adjacent scalar primitives
+ * are merged into a single [BitBuffer.getBits]/[BitBuffer.putBits] call of up to 64 bits.
+ * Narrowed values are zero extended on read. [StructField.reverse] does not apply.
+ *
+ * @author TimePath
+ */
+internal class BitCodec private constructor(type: Class<*>) {
+
+    companion object {
+
+        private val codecs = object : ClassValue<BitCodec>() {
+            override fun computeValue(type: Class<*>) = BitCodec(type)
+        }
+
+        fun of(type: Class<*>): BitCodec = codecs.get(type)
+
+        /**
+         * @return the number of bits a member, or each element of an array member, takes
+         */
+        private fun width(member: StructLayout.Member): Int {
+            val primitive = member.primitive
+            val natural = if (primitive != null && primitive.size > 0) primitive.size * 8 else 0
+            val bits = member.meta.bits
+            if (bits == 0) return natural
+            if (natural == 0 || primitive == Struct.Primitive.FLOAT || primitive == Struct.Primitive.DOUBLE) {
+                throw IllegalArgumentException("${member.field}: bits is only supported on integral primitives")
+            }
+            if (bits < 0 || bits > natural) {
+                throw IllegalArgumentException("${member.field}: bits must be between 1 and $natural")
+            }
+            return bits
+        }
+
+        private fun isScalar(member: StructLayout.Member) =
+                member.dimensions == 0 && member.primitive != null && member.primitive != Struct.Primitive.STRING
+    }
+
+    private val ops: Array<Op> = run {
+        val ops = arrayListOf<Op>()
+        val members = StructLayout.of(type).members
+        var i = 0
+        while (i < members.size) {
+            val member = members[i]
+            if (member.meta.skip > 0) ops.add(SkipOp(member.meta.skip * 8))
+            if (!isScalar(member)) {
+                ops.add(when {
+                    member.dimensions > 0 -> ArrayOp(member, width(member))
+                    member.primitive == Struct.Primitive.STRING -> StringOp(member)
+                    else -> NestedOp(member)
+                })
+                i++
+                continue
+            }
+            // Merge a run of scalars into as few words as possible
+            val run = arrayListOf<StructLayout.Member>()
+            var total = 0
+            while (i < members.size) {
+                val next = members[i]
+                if (!isScalar(next) || (run.isNotEmpty() && next.meta.skip > 0)) break
+                val w = width(next)
+                if (total + w > 64) break
+                run.add(next)
+                total += w
+                i++
+            }
+            ops.add(WordOp(run.toTypedArray(), IntArray(run.size) { width(run[it]) }, total))
+        }
+        ops.toTypedArray()
+    }
+
+    fun read(instance: Any, bits: BitBuffer) {
+        for (op in ops) op.read(instance, bits)
+    }
+
+    fun write(instance: Any, bits: BitBuffer) {
+        for (op in ops) op.write(instance, bits)
+    }
+
+    private abstract class Op {
+        abstract fun read(instance: Any, bits: BitBuffer)
+        abstract fun write(instance: Any, bits: BitBuffer)
+    }
+
+    private class SkipOp(private val n: Int) : Op() {
+        override fun read(instance: Any, bits: BitBuffer) {
+            var remaining = n
+            while (remaining > 0) {
+                val step = Math.min(remaining, 64)
+                bits.getBits(step)
+                remaining -= step
+            }
+        }
+
+        override fun write(instance: Any, bits: BitBuffer) {
+            var remaining = n
+            while (remaining > 0) {
+                val step = Math.min(remaining, 64)
+                bits.putBits(step, 0)
+                remaining -= step
+            }
+        }
+    }
+
+    /**
+     * Adjacent scalar members packed into one word
+     */
+    private class WordOp(private val members: Array<StructLayout.Member>,
+                         private val widths: IntArray,
+                         private val total: Int) : Op() {
+
+        override fun read(instance: Any, bits: BitBuffer) {
+            val word = bits.getBits(total)
+            var shift = 0
+            for (i in members.indices) {
+                val w = widths[i]
+                val v = if (w == 64) word else (word ushr shift) and ((1L shl w) - 1)
+                set(members[i], instance, v)
+                shift += w
+            }
+        }
+
+        override fun write(instance: Any, bits: BitBuffer) {
+            var word = 0L
+            var shift = 0
+            for (i in members.indices) {
+                val w = widths[i]
+                val v = get(members[i], instance)
+                word = word or ((if (w == 64) v else v and ((1L shl w) - 1)) shl shift)
+                shift += w
+            }
+            bits.putBits(total, word)
+        }
+    }
+
+    private class StringOp(private val member: StructLayout.Member) : Op() {
+
+        private val limit = member.meta.limit
+
+        override fun read(instance: Any, bits: BitBuffer) {
+            member.accessor.set(instance, bits.getString(if (limit > 0) limit else -1, true))
+        }
+
+        override fun write(instance: Any, bits: BitBuffer) = putString(bits, member.accessor.get(instance) as String, limit)
+    }
+
+    private class NestedOp(private val member: StructLayout.Member) : Op() {
+
+        private val codec = BitCodec.of(member.elementType)
+
+        override fun read(instance: Any, bits: BitBuffer) {
+            var ref = member.accessor.get(instance)
+            if (ref == null) {
+                // Instantiate if needed
+                ref = Struct.nestedCodec(member.elementType).instantiate()
+                member.accessor.set(instance, ref)
+            }
+            codec.read(ref!!, bits)
+        }
+
+        override fun write(instance: Any, bits: BitBuffer) {
+            val ref = member.accessor.get(instance) ?: throw UnsupportedOperationException("Null objects not yet supported")
+            codec.write(ref, bits)
+        }
+    }
+
+    /**
+     * Arrays, with each primitive element taking [width] bits
+     */
+    private class ArrayOp(private val member: StructLayout.Member, private val width: Int) : Op() {
+
+        private val codec = if (member.primitive == null) BitCodec.of(member.elementType) else null
+        private val length = member.meta.length
+        private val counted = member.count != null
+
+        override fun read(instance: Any, bits: BitBuffer) {
+            var ref = member.accessor.get(instance)
+            val n = if (counted) StructCodec.length(member.countOf(instance)) else length
+            if ((counted || length > 0) && (ref == null || java.lang.reflect.Array.getLength(ref) != n)) {
+                // Instantiate if needed
+                ref = java.lang.reflect.Array.newInstance(member.field.type.componentType, n)
+                member.accessor.set(instance, ref)
+            }
+            // Check if instantiated
+            if (ref == null) throw InstantiationException("Cannnot instantiate array of unknown length")
+            read(ref, bits, member.dimensions)
+        }
+
+        private fun read(array: Any, bits: BitBuffer, dimensions: Int) {
+            val n = java.lang.reflect.Array.getLength(array)
+            for (i in 0..n - 1) {
+                when {
+                    dimensions > 1 -> read(java.lang.reflect.Array.get(array, i)!!, bits, dimensions - 1)
+                    member.primitive == Struct.Primitive.STRING -> {
+                        val limit = member.meta.limit
+                        java.lang.reflect.Array.set(array, i, bits.getString(if (limit > 0) limit else -1, true))
+                    }
+                    member.primitive != null -> setElement(member.primitive, array, i, bits.getBits(width))
+                    else -> {
+                        @Suppress("UNCHECKED_CAST")
+                        val a = array as Array<Any?>
+                        val elem = a[i] ?: Struct.nestedCodec(member.elementType).instantiate() // Instantiate if needed
+                        codec!!.read(elem, bits)
+                        a[i] = elem
+                    }
+                }
+            }
+        }
+
+        override fun write(instance: Any, bits: BitBuffer) {
+            val ref = member.accessor.get(instance)
+            if (ref == null) {
+                // Check if instantiated
+                if (member.meta.nullable) return
+                throw InstantiationException("Cannnot instantiate array of unknown length")
+            }
+            val n = java.lang.reflect.Array.getLength(ref)
+            if (length > 0 && n != length) {
+                throw IllegalStateException("${member.field} must have $length elements")
+            }
+            if (counted && n.toLong() != member.countOf(instance)) {
+                throw IllegalStateException("${member.field} has $n elements, but ${member.count!!.field.name} is ${member.countOf(instance)}")
+            }
+            write(ref, bits, member.dimensions)
+        }
+
+        private fun write(array: Any, bits: BitBuffer, dimensions: Int) {
+            val n = java.lang.reflect.Array.getLength(array)
+            for (i in 0..n - 1) {
+                when {
+                    dimensions > 1 -> write(java.lang.reflect.Array.get(array, i)!!, bits, dimensions - 1)
+                    member.primitive == Struct.Primitive.STRING -> {
+                        putString(bits, (array as Array<*>)[i] as String, member.meta.limit)
+                    }
+                    member.primitive != null -> {
+                        val v = getElement(member.primitive, array, i)
+                        bits.putBits(width, if (width == 64) v else v and ((1L shl width) - 1))
+                    }
+                    else -> codec!!.write((array as Array<*>)[i]
+                            ?: throw UnsupportedOperationException("Null objects not yet supported"), bits)
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Writes a string, either fixed size or NUL terminated
+ *
+ * @param limit Size in bytes, or 0 if NUL terminated
+ */
+private fun putString(bits: BitBuffer, s: String, limit: Int) {
+    if (limit <= 0) {
+        bits.putString(s)
+        return
+    }
+    val b = s.toByteArray(StandardCharsets.UTF_8)
+    for (i in 0..limit - 1) bits.putByte(if (i < b.size) b[i] else 0)
+}
+
+/**
+ * Stores the low bits of [v] into a scalar member, zero extended
+ */
+private fun set(member: StructLayout.Member, instance: Any, v: Long) {
+    val accessor = member.accessor
+    when (member.primitive) {
+        Struct.Primitive.BOOLEAN -> accessor.setBoolean(instance, v != 0L)
+        Struct.Primitive.BYTE -> accessor.setByte(instance, v.toByte())
+        Struct.Primitive.CHAR -> accessor.setChar(instance, v.toChar())
+        Struct.Primitive.SHORT -> accessor.setShort(instance, v.toShort())
+        Struct.Primitive.INT -> accessor.setInt(instance, v.toInt())
+        Struct.Primitive.LONG -> accessor.setLong(instance, v)
+        Struct.Primitive.FLOAT -> accessor.setFloat(instance, java.lang.Float.intBitsToFloat(v.toInt()))
+        Struct.Primitive.DOUBLE -> accessor.setDouble(instance, java.lang.Double.longBitsToDouble(v))
+        else -> throw IllegalArgumentException("$member is not a scalar")
+    }
+}
+
+/**
+ * @return the bits of a scalar member, zero extended
+ */
+private fun get(member: StructLayout.Member, instance: Any): Long {
+    val accessor = member.accessor
+    return when (member.primitive) {
+        Struct.Primitive.BOOLEAN -> if (accessor.getBoolean(instance)) 1L else 0L
+        Struct.Primitive.BYTE -> accessor.getByte(instance).toLong() and 0xFF
+        Struct.Primitive.CHAR -> accessor.getChar(instance).toLong()
+        Struct.Primitive.SHORT -> accessor.getShort(instance).toLong() and 0xFFFF
+        Struct.Primitive.INT -> accessor.getInt(instance).toLong() and 0xFFFFFFFFL
+        Struct.Primitive.LONG -> accessor.getLong(instance)
+        Struct.Primitive.FLOAT -> java.lang.Float.floatToRawIntBits(accessor.getFloat(instance)).toLong() and 0xFFFFFFFFL
+        Struct.Primitive.DOUBLE -> java.lang.Double.doubleToRawLongBits(accessor.getDouble(instance))
+        else -> throw IllegalArgumentException("$member is not a scalar")
+    }
+}
+
+private fun setElement(primitive: Struct.Primitive, array: Any, i: Int, v: Long) {
+    when (primitive) {
+        Struct.Primitive.BOOLEAN -> (array as BooleanArray)[i] = v != 0L
+        Struct.Primitive.BYTE -> (array as ByteArray)[i] = v.toByte()
+        Struct.Primitive.CHAR -> (array as CharArray)[i] = v.toChar()
+        Struct.Primitive.SHORT -> (array as ShortArray)[i] = v.toShort()
+        Struct.Primitive.INT -> (array as IntArray)[i] = v.toInt()
+        Struct.Primitive.LONG -> (array as LongArray)[i] = v
+        Struct.Primitive.FLOAT -> (array as FloatArray)[i] = java.lang.Float.intBitsToFloat(v.toInt())
+        Struct.Primitive.DOUBLE -> (array as DoubleArray)[i] = java.lang.Double.longBitsToDouble(v)
+        else -> throw IllegalArgumentException("$primitive is not a scalar")
+    }
+}
+
+private fun getElement(primitive: Struct.Primitive, array: Any, i: Int): Long = when (primitive) {
+    Struct.Primitive.BOOLEAN -> if ((array as BooleanArray)[i]) 1L else 0L
+    Struct.Primitive.BYTE -> (array as ByteArray)[i].toLong() and 0xFF
+    Struct.Primitive.CHAR -> (array as CharArray)[i].toLong()
+    Struct.Primitive.SHORT -> (array as ShortArray)[i].toLong() and 0xFFFF
+    Struct.Primitive.INT -> (array as IntArray)[i].toLong() and 0xFFFFFFFFL
+    Struct.Primitive.LONG -> (array as LongArray)[i]
+    Struct.Primitive.FLOAT -> java.lang.Float.floatToRawIntBits((array as FloatArray)[i]).toLong() and 0xFFFFFFFFL
+    Struct.Primitive.DOUBLE -> java.lang.Double.doubleToRawLongBits((array as DoubleArray)[i])
+    else -> throw IllegalArgumentException("$primitive is not a scalar")
+}
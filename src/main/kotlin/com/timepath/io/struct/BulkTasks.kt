@@ -0,0 +1,75 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.ByteBufferDataOutput
+import java.nio.ByteBuffer
+import java.util.concurrent.RecursiveAction
+
+/**
+ * Minimum number of records handled by a single task
+ */
+private const val MIN_SLICE = 256
+
+/**
+ * Decodes records `[from, to)` of fixed [size], starting at absolute offset [origin], into [out].
+ * Split in halves down to [threshold] records, each leaf reads through its own duplicate of the buffer.
+ *
+ * @author TimePath
+ */
+internal class UnpackTask<T : Any>(private val codec: StructCodec<T>,
+                                   private val buf: ByteBuffer,
+                                   private val origin: Int,
+                                   private val size: Int,
+                                   private val out: Array<T>,
+                                   private val from: Int,
+                                   private val to: Int,
+                                   private val threshold: Int) : RecursiveAction() {
+
+    override fun compute() {
+        if (to - from > threshold) {
+            val mid = (from + to) ushr 1
+            invokeAll(UnpackTask(codec, buf, origin, size, out, from, mid, threshold),
+                    UnpackTask(codec, buf, origin, size, out, mid, to, threshold))
+            return
+        }
+        val input = ByteBufferDataInput(buf.duplicate().order(buf.order()))
+        for (i in from..to - 1) {
+            input.position(origin + i * size)
+            out[i] = codec.decode(input)
+        }
+    }
+}
+
+/**
+ * Encodes records `[from, to)` of fixed [size] from [array], starting at absolute offset [origin].
+ *
+ * @author TimePath
+ */
+internal class PackTask<T : Any>(private val codec: StructCodec<T>,
+                                 private val buf: ByteBuffer,
+                                 private val origin: Int,
+                                 private val size: Int,
+                                 private val array: Array<out T>,
+                                 private val from: Int,
+                                 private val to: Int,
+                                 private val threshold: Int) : RecursiveAction() {
+
+    override fun compute() {
+        if (to - from > threshold) {
+            val mid = (from + to) ushr 1
+            invokeAll(PackTask(codec, buf, origin, size, array, from, mid, threshold),
+                    PackTask(codec, buf, origin, size, array, mid, to, threshold))
+            return
+        }
+        val output = ByteBufferDataOutput(buf.duplicate().order(buf.order()))
+        for (i in from..to - 1) {
+            output.position(origin + i * size)
+            codec.write(array[i], output)
+        }
+    }
+}
+
+/**
+ * @return the number of records per task, aiming for a few tasks per worker
+ */
+internal fun threshold(count: Int, parallelism: Int) = Math.max(MIN_SLICE, count / (parallelism * 4))
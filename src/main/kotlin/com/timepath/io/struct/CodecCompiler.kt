@@ -0,0 +1,520 @@
+package com.timepath.io.struct
+
+import com.timepath.Logger
+import java.io.DataInput
+import java.io.DataOutput
+import java.util.logging.Level
+
+/**
+ * Builds a [StructCodec] out of one specialized reader/writer per field.
+ * All reflection happens here, the resulting codec only goes through [FieldAccessor] and [Instantiator].
+ *
+ * @author TimePath
+ */
+internal object CodecCompiler {
+
+    private val LOG = Logger()
+
+    private val fields = object : ClassValue<Array<FieldCodec>>() {
+        override fun computeValue(type: Class<*>): Array<FieldCodec> {
+            LOG.log(Level.FINE) { "Compiling field codecs for $type" }
+            return StructLayout.of(type).members.map { compile(it) }.toTypedArray()
+        }
+    }
+
+    fun <T : Any> compile(type: Class<T>): StructCodec<T> {
+        val layout = StructLayout.of(type)
+        val constructor = layout.constructor ?: return CompiledCodec(Instantiator(type), fields(type))
+        LOG.log(Level.FINE) { "Decoding $type through $constructor" }
+        return ConstructorCodec(Instantiator(constructor), layout, fields(type))
+    }
+
+    /**
+     * @return codecs for each of [StructLayout.members], computed on first use
+     */
+    fun fields(type: Class<*>): Array<FieldCodec> = fields.get(type)
+
+    private fun compile(member: StructLayout.Member): FieldCodec {
+        val accessor = member.accessor
+        val meta = member.meta
+        return when {
+            member.dimensions > 0 -> ArrayField(member, compileArray(member, member.dimensions))
+            member.varint -> when (member.primitive) {
+                Struct.Primitive.STRING -> PrefixedStringField(accessor, meta)
+                else -> VarintField(accessor, meta, member.primitive!!)
+            }
+            else -> when (member.primitive) {
+                Struct.Primitive.BOOLEAN -> BooleanField(accessor, meta)
+                Struct.Primitive.BYTE -> ByteField(accessor, meta)
+                Struct.Primitive.CHAR -> CharField(accessor, meta)
+                Struct.Primitive.SHORT -> ShortField(accessor, meta)
+                Struct.Primitive.INT -> IntField(accessor, meta)
+                Struct.Primitive.LONG -> LongField(accessor, meta)
+                Struct.Primitive.FLOAT -> FloatField(accessor, meta)
+                Struct.Primitive.DOUBLE -> DoubleField(accessor, meta)
+                Struct.Primitive.STRING -> StringField(accessor, meta)
+                else -> ObjectField(accessor, meta, codecOf(member.elementType))
+            }
+        }
+    }
+
+    /**
+     * @param dimensions Remaining array dimensions
+     */
+    private fun compileArray(member: StructLayout.Member, dimensions: Int): ArrayCodec {
+        return when {
+            dimensions > 1 -> NestedArrayCodec(compileArray(member, dimensions - 1))
+            member.varint -> when (member.primitive) {
+                Struct.Primitive.STRING -> StringArrayCodec(member.meta.limit, strings(member.meta), true)
+                else -> VarintArrayCodec(member.primitive!!)
+            }
+            else -> when (member.primitive) {
+                Struct.Primitive.BOOLEAN -> BooleanArrayCodec()
+                Struct.Primitive.BYTE -> ByteArrayCodec()
+                Struct.Primitive.CHAR -> CharArrayCodec(member.meta.reverse)
+                Struct.Primitive.SHORT -> ShortArrayCodec(member.meta.reverse)
+                Struct.Primitive.INT -> IntArrayCodec(member.meta.reverse)
+                Struct.Primitive.LONG -> LongArrayCodec(member.meta.reverse)
+                Struct.Primitive.FLOAT -> FloatArrayCodec(member.meta.reverse)
+                Struct.Primitive.DOUBLE -> DoubleArrayCodec(member.meta.reverse)
+                Struct.Primitive.STRING -> StringArrayCodec(member.meta.limit, strings(member.meta), false)
+                else -> ObjectArrayCodec(codecOf(member.elementType))
+            }
+        }
+    }
+
+    private fun strings(meta: StructField) = if (meta.dedup) StringTable() else null
+
+    /**
+     * @return the codec for a nested struct, resolved on first use so that a struct may contain itself
+     */
+    @Suppress("UNCHECKED_CAST")
+    private fun codecOf(type: Class<*>) = lazy(LazyThreadSafetyMode.PUBLICATION) {
+        Struct.nestedCodec(type) as StructCodec<Any>
+    }
+
+    private class CompiledCodec<T : Any>(private val instantiator: Instantiator,
+                                         private val fields: Array<FieldCodec>) : StructCodec<T>() {
+
+        @Suppress("UNCHECKED_CAST")
+        override fun instantiate() = instantiator.newInstance() as T
+
+        override fun read(instance: T, input: DataInput) {
+            for (field in fields) {
+                if (field.skip > 0) StructCodec.skip(input, field.skip)
+                field.read(instance, input)
+            }
+        }
+
+        override fun write(instance: T, output: DataOutput) {
+            for (field in fields) {
+                if (field.skip > 0) StructCodec.pad(output, field.skip)
+                field.write(instance, output)
+            }
+        }
+    }
+
+    /**
+     * Decodes into constructor arguments rather than fields, for immutable types. See [StructConstructor]
+     */
+    private class ConstructorCodec<T : Any>(private val instantiator: Instantiator,
+                                            private val layout: StructLayout,
+                                            private val fields: Array<FieldCodec>) : StructCodec<T>() {
+
+        private val members = layout.members.toTypedArray()
+        private val arrays = Array(members.size) {
+            val member = members[it]
+            if (member.dimensions > 0) compileArray(member, member.dimensions) else null
+        }
+        private val codecs = Array(members.size) {
+            val member = members[it]
+            if (member.dimensions == 0 && member.primitive == null) codecOf(member.elementType) else null
+        }
+        private val strings = Array(members.size) { strings(members[it].meta) }
+        /** Position of the [StructField.lengthRef] member of each array, or -1 */
+        private val counts = IntArray(members.size) { members[it].count?.let { layout.members.indexOf(it) } ?: -1 }
+
+        init {
+            for ((i, member) in members.withIndex()) {
+                if (member.dimensions > 0 && member.meta.length == 0 && counts[i] < 0) {
+                    throw IllegalArgumentException("${member.field}: arrays of immutable structs need a length or lengthRef")
+                }
+            }
+        }
+
+        override val isMutable: Boolean get() = false
+
+        override fun instantiate(): T = throw InstantiationException("${layout.type.name} is immutable, see decode")
+
+        override fun read(instance: T, input: DataInput) =
+                throw UnsupportedOperationException("${layout.type.name} is immutable, see decode")
+
+        override fun decode(input: DataInput): T {
+            val args = arrayOfNulls<Any>(members.size)
+            for (i in members.indices) {
+                if (fields[i].skip > 0) StructCodec.skip(input, fields[i].skip)
+                args[i] = value(i, input, args)
+            }
+            @Suppress("UNCHECKED_CAST")
+            return instantiator.newInstance(args) as T
+        }
+
+        /**
+         * @param args Values decoded so far
+         */
+        private fun value(i: Int, input: DataInput, args: Array<Any?>): Any? {
+            val member = members[i]
+            val reverse = member.meta.reverse
+            if (member.varint && member.dimensions == 0) return when (member.primitive) {
+                Struct.Primitive.STRING -> StructCodec.readPrefixedString(input, member.meta.limit, strings[i])
+                Struct.Primitive.SHORT -> StructCodec.readVarLong(input).toShort()
+                Struct.Primitive.CHAR -> StructCodec.readVarLong(input).toChar()
+                Struct.Primitive.INT -> StructCodec.readVarLong(input).toInt()
+                else -> StructCodec.readVarLong(input)
+            }
+            if (member.dimensions > 0) {
+                val n = if (counts[i] >= 0) StructCodec.length(count(args[counts[i]]!!)) else member.meta.length
+                val array = java.lang.reflect.Array.newInstance(member.field.type.componentType, n)
+                arrays[i]!!.read(array, input)
+                return array
+            }
+            return when (member.primitive) {
+                Struct.Primitive.BOOLEAN -> input.readBoolean()
+                Struct.Primitive.BYTE -> input.readByte()
+                Struct.Primitive.CHAR -> input.readChar().let { if (reverse) Character.reverseBytes(it) else it }
+                Struct.Primitive.SHORT -> input.readShort().let { if (reverse) java.lang.Short.reverseBytes(it) else it }
+                Struct.Primitive.INT -> input.readInt().let { if (reverse) Integer.reverseBytes(it) else it }
+                Struct.Primitive.LONG -> input.readLong().let { if (reverse) java.lang.Long.reverseBytes(it) else it }
+                Struct.Primitive.FLOAT -> when {
+                    reverse -> java.lang.Float.intBitsToFloat(Integer.reverseBytes(input.readInt()))
+                    else -> input.readFloat()
+                }
+                Struct.Primitive.DOUBLE -> when {
+                    reverse -> java.lang.Double.longBitsToDouble(java.lang.Long.reverseBytes(input.readLong()))
+                    else -> input.readDouble()
+                }
+                Struct.Primitive.STRING -> StructCodec.readString(input, member.meta.limit, strings[i])
+                else -> codecs[i]!!.value.decode(input)
+            }
+        }
+
+        /**
+         * Widens a decoded count, byte and short counts being unsigned
+         */
+        private fun count(value: Any): Long = when (value) {
+            is Byte -> value.toLong() and 0xFF
+            is Short -> value.toLong() and 0xFFFF
+            is Char -> value.toLong()
+            else -> (value as Number).toLong()
+        }
+
+        override fun write(instance: T, output: DataOutput) {
+            for (field in fields) {
+                if (field.skip > 0) StructCodec.pad(output, field.skip)
+                field.write(instance, output)
+            }
+        }
+    }
+
+    abstract class FieldCodec(val accessor: FieldAccessor, val meta: StructField) {
+        /** Opposite byte order to the input/output */
+        val reverse = meta.reverse
+        /** Bytes preceding this field, read once as annotation accessors are slow */
+        val skip = meta.skip
+
+        abstract fun read(instance: Any, input: DataInput)
+        abstract fun write(instance: Any, output: DataOutput)
+    }
+
+    private class BooleanField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = accessor.setBoolean(instance, input.readBoolean())
+        override fun write(instance: Any, output: DataOutput) = output.writeBoolean(accessor.getBoolean(instance))
+    }
+
+    private class ByteField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = accessor.setByte(instance, input.readByte())
+        override fun write(instance: Any, output: DataOutput) = output.writeByte(accessor.getByte(instance).toInt())
+    }
+
+    private class CharField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = input.readChar().let {
+            accessor.setChar(instance, if (reverse) Character.reverseBytes(it) else it)
+        }
+
+        override fun write(instance: Any, output: DataOutput) = accessor.getChar(instance).let {
+            output.writeChar((if (reverse) Character.reverseBytes(it) else it).toInt())
+        }
+    }
+
+    private class ShortField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = input.readShort().let {
+            accessor.setShort(instance, if (reverse) java.lang.Short.reverseBytes(it) else it)
+        }
+
+        override fun write(instance: Any, output: DataOutput) = accessor.getShort(instance).let {
+            output.writeShort((if (reverse) java.lang.Short.reverseBytes(it) else it).toInt())
+        }
+    }
+
+    private class IntField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = input.readInt().let {
+            accessor.setInt(instance, if (reverse) Integer.reverseBytes(it) else it)
+        }
+
+        override fun write(instance: Any, output: DataOutput) = accessor.getInt(instance).let {
+            output.writeInt(if (reverse) Integer.reverseBytes(it) else it)
+        }
+    }
+
+    private class LongField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = input.readLong().let {
+            accessor.setLong(instance, if (reverse) java.lang.Long.reverseBytes(it) else it)
+        }
+
+        override fun write(instance: Any, output: DataOutput) = accessor.getLong(instance).let {
+            output.writeLong(if (reverse) java.lang.Long.reverseBytes(it) else it)
+        }
+    }
+
+    private class FloatField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = when {
+            reverse -> accessor.setFloat(instance, java.lang.Float.intBitsToFloat(Integer.reverseBytes(input.readInt())))
+            else -> accessor.setFloat(instance, input.readFloat())
+        }
+
+        override fun write(instance: Any, output: DataOutput) = when {
+            reverse -> output.writeInt(Integer.reverseBytes(java.lang.Float.floatToRawIntBits(accessor.getFloat(instance))))
+            else -> output.writeFloat(accessor.getFloat(instance))
+        }
+    }
+
+    private class DoubleField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = when {
+            reverse -> accessor.setDouble(instance, java.lang.Double.longBitsToDouble(java.lang.Long.reverseBytes(input.readLong())))
+            else -> accessor.setDouble(instance, input.readDouble())
+        }
+
+        override fun write(instance: Any, output: DataOutput) = when {
+            reverse -> output.writeLong(java.lang.Long.reverseBytes(java.lang.Double.doubleToRawLongBits(accessor.getDouble(instance))))
+            else -> output.writeDouble(accessor.getDouble(instance))
+        }
+    }
+
+    private class StringField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        private val strings = strings(meta)
+
+        override fun read(instance: Any, input: DataInput) = accessor.set(instance, StructCodec.readString(input, meta.limit, strings))
+        override fun write(instance: Any, output: DataOutput) = StructCodec.writeString(output, accessor.get(instance) as String, meta.limit)
+    }
+
+    /**
+     * Integral primitives as ZigZag LEB128 varints
+     */
+    private class VarintField(accessor: FieldAccessor, meta: StructField,
+                              private val primitive: Struct.Primitive) : FieldCodec(accessor, meta) {
+        override fun read(instance: Any, input: DataInput) = StructCodec.readVarLong(input).let {
+            when (primitive) {
+                Struct.Primitive.SHORT -> accessor.setShort(instance, it.toShort())
+                Struct.Primitive.CHAR -> accessor.setChar(instance, it.toChar())
+                Struct.Primitive.INT -> accessor.setInt(instance, it.toInt())
+                else -> accessor.setLong(instance, it)
+            }
+        }
+
+        override fun write(instance: Any, output: DataOutput) = StructCodec.writeVarLong(output, when (primitive) {
+            Struct.Primitive.SHORT -> accessor.getShort(instance).toLong()
+            Struct.Primitive.CHAR -> accessor.getChar(instance).toLong()
+            Struct.Primitive.INT -> accessor.getInt(instance).toLong()
+            else -> accessor.getLong(instance)
+        })
+    }
+
+    private class PrefixedStringField(accessor: FieldAccessor, meta: StructField) : FieldCodec(accessor, meta) {
+        private val strings = strings(meta)
+
+        override fun read(instance: Any, input: DataInput) = accessor.set(instance, StructCodec.readPrefixedString(input, meta.limit, strings))
+        override fun write(instance: Any, output: DataOutput) = StructCodec.writePrefixedString(output, accessor.get(instance) as String, meta.limit)
+    }
+
+    private class ObjectField(accessor: FieldAccessor, meta: StructField,
+                              nested: Lazy<StructCodec<Any>>) : FieldCodec(accessor, meta) {
+
+        private val codec by nested
+
+        override fun read(instance: Any, input: DataInput) {
+            val ref = accessor.get(instance)
+            if (ref != null && codec.isMutable) {
+                codec.read(ref, input)
+                return
+            }
+            // Instantiate if needed
+            LOG.log(Level.FINE) { "Instantiating ${accessor.field}" }
+            accessor.set(instance, codec.decode(input))
+        }
+
+        override fun write(instance: Any, output: DataOutput) {
+            val ref = accessor.get(instance)
+            if (ref != null) {
+                codec.write(ref, output)
+                return
+            }
+            // Skip over
+            LOG.log(Level.FINE) { "Instantiating ${accessor.field}" }
+            StructCodec.pad(output, Struct.sizeof(codec.instantiate()))
+        }
+    }
+
+    private class ArrayField(private val member: StructLayout.Member,
+                             private val codec: ArrayCodec) : FieldCodec(member.accessor, member.meta) {
+
+        private val componentType = member.field.type.componentType
+        /** Fixed element count, or 0 */
+        private val length = meta.length
+        private val counted = member.count != null
+
+        override fun read(instance: Any, input: DataInput) {
+            var ref = accessor.get(instance)
+            val n = if (counted) StructCodec.length(member.countOf(instance)) else length
+            if ((counted || length > 0) && (ref == null || java.lang.reflect.Array.getLength(ref) != n)) {
+                // Instantiate if needed
+                ref = java.lang.reflect.Array.newInstance(componentType, n)
+                accessor.set(instance, ref)
+            }
+            // Check if instantiated
+            if (ref == null) throw InstantiationException("Cannnot instantiate array of unknown length")
+            codec.read(ref, input)
+        }
+
+        override fun write(instance: Any, output: DataOutput) {
+            val ref = accessor.get(instance)
+            if (ref == null) {
+                // Check if instantiated
+                if (meta.nullable) return
+                throw InstantiationException("Cannnot instantiate array of unknown length")
+            }
+            val n = java.lang.reflect.Array.getLength(ref)
+            if (length > 0 && n != length) {
+                throw IllegalStateException("${accessor.field} must have $length elements")
+            }
+            if (counted && n.toLong() != member.countOf(instance)) {
+                throw IllegalStateException("${accessor.field} has $n elements, but ${member.count!!.field.name} is ${member.countOf(instance)}")
+            }
+            codec.write(ref, output)
+        }
+    }
+
+    private abstract class ArrayCodec {
+        abstract fun read(array: Any, input: DataInput)
+        abstract fun write(array: Any, output: DataOutput)
+    }
+
+    private class NestedArrayCodec(private val inner: ArrayCodec) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) {
+            for (elem in array as Array<*>) inner.read(elem!!, input)
+        }
+
+        override fun write(array: Any, output: DataOutput) {
+            for (elem in array as Array<*>) inner.write(elem!!, output)
+        }
+    }
+
+    private class ObjectArrayCodec(nested: Lazy<StructCodec<Any>>) : ArrayCodec() {
+
+        private val codec by nested
+
+        override fun read(array: Any, input: DataInput) {
+            @Suppress("UNCHECKED_CAST")
+            val a = array as Array<Any?>
+            for (i in a.indices) {
+                val elem = a[i]
+                if (elem != null && codec.isMutable) codec.read(elem, input)
+                else a[i] = codec.decode(input) // Instantiate if needed
+            }
+        }
+
+        override fun write(array: Any, output: DataOutput) {
+            for (elem in array as Array<*>) {
+                if (elem == null) throw UnsupportedOperationException("Null objects not yet supported")
+                codec.write(elem, output)
+            }
+        }
+    }
+
+    /**
+     * @param prefixed Length prefixed, see [StructField.varint]
+     */
+    private class StringArrayCodec(private val limit: Int, private val strings: StringTable?,
+                                   private val prefixed: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) {
+            @Suppress("UNCHECKED_CAST")
+            val a = array as Array<String?>
+            for (i in a.indices) a[i] = when {
+                prefixed -> StructCodec.readPrefixedString(input, limit, strings)
+                else -> StructCodec.readString(input, limit, strings)
+            }
+        }
+
+        override fun write(array: Any, output: DataOutput) {
+            for (elem in array as Array<*>) when {
+                prefixed -> StructCodec.writePrefixedString(output, elem as String, limit)
+                else -> StructCodec.writeString(output, elem as String, limit)
+            }
+        }
+    }
+
+    private class VarintArrayCodec(private val primitive: Struct.Primitive) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = when (primitive) {
+            Struct.Primitive.SHORT -> (array as ShortArray).let { for (i in it.indices) it[i] = StructCodec.readVarLong(input).toShort() }
+            Struct.Primitive.CHAR -> (array as CharArray).let { for (i in it.indices) it[i] = StructCodec.readVarLong(input).toChar() }
+            Struct.Primitive.INT -> (array as IntArray).let { for (i in it.indices) it[i] = StructCodec.readVarLong(input).toInt() }
+            else -> (array as LongArray).let { for (i in it.indices) it[i] = StructCodec.readVarLong(input) }
+        }
+
+        override fun write(array: Any, output: DataOutput) = when (primitive) {
+            Struct.Primitive.SHORT -> for (v in array as ShortArray) StructCodec.writeVarLong(output, v.toLong())
+            Struct.Primitive.CHAR -> for (v in array as CharArray) StructCodec.writeVarLong(output, v.toLong())
+            Struct.Primitive.INT -> for (v in array as IntArray) StructCodec.writeVarLong(output, v.toLong())
+            else -> for (v in array as LongArray) StructCodec.writeVarLong(output, v)
+        }
+    }
+
+    private class BooleanArrayCodec : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as BooleanArray)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as BooleanArray)
+    }
+
+    private class ByteArrayCodec : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as ByteArray)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as ByteArray)
+    }
+
+    private class CharArrayCodec(private val reverse: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as CharArray, reverse)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as CharArray, reverse)
+    }
+
+    private class ShortArrayCodec(private val reverse: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as ShortArray, reverse)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as ShortArray, reverse)
+    }
+
+    private class IntArrayCodec(private val reverse: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as IntArray, reverse)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as IntArray, reverse)
+    }
+
+    private class LongArrayCodec(private val reverse: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as LongArray, reverse)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as LongArray, reverse)
+    }
+
+    private class FloatArrayCodec(private val reverse: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as FloatArray, reverse)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as FloatArray, reverse)
+    }
+
+    private class DoubleArrayCodec(private val reverse: Boolean) : ArrayCodec() {
+        override fun read(array: Any, input: DataInput) = StructCodec.readArray(input, array as DoubleArray, reverse)
+        override fun write(array: Any, output: DataOutput) = StructCodec.writeArray(output, array as DoubleArray, reverse)
+    }
+}
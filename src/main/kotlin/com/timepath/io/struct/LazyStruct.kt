@@ -0,0 +1,161 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import java.nio.ByteBuffer
+
+/**
+ * Decodes the fields of a record in a [ByteBuffer] on first access, for scans which only look at a few fields of
+ * large records. Decoded values are memoized in a backing instance, see [get].
+ * Fields following a dynamically sized member are located by decoding that member first.
+ * Nested structs can be decoded lazily as well, see [nested].
+ *
+ * ```
+ * val rec = LazyStruct(Entry::class.java, buf)
+ * for (offset in offsets) total += rec.at(offset).getInt("health")
+ * ```
+ *
+ * The buffer is read through a duplicate, but its contents must not change while in use.
+ *
+ * @param offset Absolute offset of the record
+ * @author TimePath
+ */
+public class LazyStruct<T : Any>(public val type: Class<T>,
+                                 buffer: ByteBuffer,
+                                 offset: Int = buffer.position()) {
+
+    private val layout = StructLayout.of(type)
+    private val fields = CodecCompiler.fields(type)
+    private val input = ByteBufferDataInput(buffer.duplicate().order(buffer.order()))
+    private val instance: T = Struct.codec(type).let {
+        if (!it.isMutable) throw IllegalArgumentException("${type.name} is immutable, LazyStruct decodes into an instance")
+        it.instantiate()
+    }
+    /**
+     * Absolute offset of each member, excluding [StructField.skip]. Less than 0 if not yet known
+     */
+    private val starts = IntArray(fields.size)
+    /**
+     * Absolute offset following each decoded member
+     */
+    private val ends = IntArray(fields.size)
+    private val decoded = BooleanArray(fields.size)
+    private val children = arrayOfNulls<LazyStruct<*>>(fields.size)
+    private val attached = BooleanArray(fields.size)
+
+    /**
+     * Absolute offset of the current record
+     */
+    public var offset: Int = offset
+        private set
+
+    init {
+        at(offset)
+    }
+
+    /**
+     * Points at another record, forgetting all decoded values. Does not allocate
+     *
+     * @return this
+     */
+    public fun at(offset: Int): LazyStruct<T> {
+        this.offset = offset
+        for (i in fields.indices) {
+            val relative = layout.offsetOf(i)
+            starts[i] = if (relative < 0) -1 else offset + relative
+            decoded[i] = false
+            attached[i] = false
+        }
+        return this
+    }
+
+    private fun start(i: Int): Int {
+        if (starts[i] < 0) starts[i] = end(i - 1) + fields[i].skip
+        return starts[i]
+    }
+
+    private fun end(i: Int): Int {
+        val size = layout.members[i].size
+        if (size >= 0) return start(i) + size
+        decode(i)
+        return ends[i]
+    }
+
+    private fun decode(i: Int) {
+        if (decoded[i]) return
+        // Arrays sized by an earlier member
+        layout.members[i].count?.let { decode(layout.indexOf(it.field.name)) }
+        input.position(start(i))
+        fields[i].read(instance, input)
+        ends[i] = input.position()
+        decoded[i] = true
+    }
+
+    /**
+     * Decodes any remaining fields
+     *
+     * @return the backing instance, owned by this
+     */
+    public fun get(): T {
+        for (i in fields.indices) decode(i)
+        return instance
+    }
+
+    /**
+     * @return the boxed value of a field
+     * @throws NoSuchElementException if there is no such field
+     */
+    public operator fun get(name: String): Any? {
+        val i = layout.indexOf(name)
+        decode(i)
+        return fields[i].accessor.get(instance)
+    }
+
+    /**
+     * Decodes a nested struct field lazily as well.
+     * The result is reused, and re-pointed along with this
+     *
+     * @throws NoSuchElementException if there is no such field
+     */
+    public fun nested(name: String): LazyStruct<*> {
+        val i = layout.indexOf(name)
+        val member = layout.members[i]
+        if (member.dimensions > 0 || member.primitive != null) {
+            throw IllegalArgumentException("$member is not a nested struct")
+        }
+        var child = children[i]
+        if (child == null) {
+            child = LazyStruct(member.elementType, input.buffer(), start(i))
+            children[i] = child
+        } else if (!attached[i]) {
+            child.at(start(i))
+        }
+        attached[i] = true
+        return child
+    }
+
+    private fun field(name: String): FieldAccessor {
+        val i = layout.indexOf(name)
+        decode(i)
+        return fields[i].accessor
+    }
+
+    public fun getBoolean(name: String): Boolean = field(name).getBoolean(instance)
+
+    public fun getByte(name: String): Byte = field(name).getByte(instance)
+
+    public fun getChar(name: String): Char = field(name).getChar(instance)
+
+    public fun getShort(name: String): Short = field(name).getShort(instance)
+
+    public fun getInt(name: String): Int = field(name).getInt(instance)
+
+    public fun getLong(name: String): Long = field(name).getLong(instance)
+
+    public fun getFloat(name: String): Float = field(name).getFloat(instance)
+
+    public fun getDouble(name: String): Double = field(name).getDouble(instance)
+
+    public fun getString(name: String): String = get(name) as String
+
+    override fun toString() = "LazyStruct(${type.name} @ $offset)"
+}
@@ -0,0 +1,39 @@
+package com.timepath.io.struct
+
+import java.util.Arrays
+
+/**
+ * Lossy cache from encoded bytes to [String], so repeated values share one instance and a hit allocates nothing.
+ * Colliding values replace each other, keeping the table bounded. Safe for use from multiple threads.
+ *
+ * @param capacity Number of slots, rounded up to a power of two
+ * @see StructField.dedup
+ * @author TimePath
+ */
+public class StringTable @JvmOverloads constructor(capacity: Int = 256) {
+
+    private class Entry(val hash: Int, val bytes: ByteArray, val string: String)
+
+    private val table = arrayOfNulls<Entry>(Integer.highestOneBit(Math.max(1, capacity - 1)) shl 1)
+    private val mask = table.size - 1
+
+    /**
+     * @return a string equal to the UTF-8 decoding of the given bytes
+     */
+    public fun get(b: ByteArray, off: Int, len: Int): String {
+        var hash = 1
+        for (i in off..off + len - 1) hash = 31 * hash + b[i]
+        val slot = (hash xor (hash ushr 16)) and mask
+        val entry = table[slot]
+        if (entry != null && entry.hash == hash && equal(entry.bytes, b, off, len)) return entry.string
+        val string = StructCodec.decode(b, off, len)
+        table[slot] = Entry(hash, Arrays.copyOfRange(b, off, off + len), string)
+        return string
+    }
+
+    private fun equal(a: ByteArray, b: ByteArray, off: Int, len: Int): Boolean {
+        if (a.size != len) return false
+        for (i in 0..len - 1) if (a[i] != b[off + i]) return false
+        return true
+    }
+}
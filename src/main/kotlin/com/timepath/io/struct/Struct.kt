@@ -1,15 +1,18 @@
 package com.timepath.io.struct
 
 import com.timepath.Logger
+import com.timepath.io.BitBuffer
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.ByteBufferDataOutput
 import com.timepath.io.OrderedInputStream
 import com.timepath.io.OrderedOutputStream
-import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.IOException
 import java.lang.reflect.Array
-import java.lang.reflect.Field
-import java.nio.charset.StandardCharsets
-import java.util.*
+import java.nio.BufferOverflowException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.util.concurrent.ForkJoinPool
 import java.util.logging.Level
 
 public object Struct {
@@ -17,14 +20,23 @@ public object Struct {
     private val LOG = Logger()
 
     /**
-     * Calculates the size of non-dynamic structs. <b>Warning</b>: the class will be instantiated,
-     * prefer using an existing instance. This constructor exists solely to catch misuse.
+     * Calculates the size of non-dynamic structs. Fixed layouts are measured once and cached, see [isFixed].
+     * <b>Warning</b>: otherwise the class will be instantiated, prefer using an existing instance.
      *
      * @param clazz The struct class to measure
      * @return The size, or a value less than 0 to indicate dynamic size
      */
-    @Deprecated("", ReplaceWith(""))
-    public @JvmStatic fun sizeof(clazz: Class<*>) = sizeof(clazz.newInstance()!!)
+    public @JvmStatic fun sizeof(clazz: Class<*>): Int {
+        val layout = StructLayout.of(clazz)
+        if (layout.isFixed) return layout.size
+        return sizeof(codec(clazz).instantiate())
+    }
+
+    /**
+     * @param clazz The struct class
+     * @return true if all instances have the same size, which is then cached
+     */
+    public @JvmStatic fun isFixed(clazz: Class<*>): Boolean = StructLayout.of(clazz).isFixed
 
     /**
      * Calculates the size of non-dynamic structs
@@ -33,15 +45,12 @@ public object Struct {
      * @return The size, or a value less than 0 to indicate dynamic size
      */
     public @JvmStatic fun sizeof(instance: Any): Int {
+        val layout = StructLayout.of(instance.javaClass)
+        if (layout.isFixed) return layout.size
         var size = 0
-        for (field in instance.javaClass.declaredFields) {
-            val accessible = field.isAccessible
-            field.isAccessible = true
-            val meta = field.getAnnotation(StructField::class.java)
-            meta?.let {
-                size += sizeof(field.type, it, field.get(instance))
-            }
-            field.isAccessible = accessible
+        for (member in layout.members) {
+            val ref = if (member.size >= 0) null else member.accessor.get(instance)
+            size += sizeof(member, ref)
         }
         return size
     }
@@ -64,73 +73,34 @@ public object Struct {
         return null
     }
 
-    public @JvmStatic fun pack(instance: Any, os: OrderedOutputStream) {
-        for (field in getFields(instance.javaClass)) {
-            val accessible = field.isAccessible
-            field.isAccessible = true
-            writeField(instance, field, os)
-            field.isAccessible = accessible
-        }
-    }
+    public @JvmStatic fun pack(instance: Any, os: OrderedOutputStream) = codec(instance.javaClass).write(instance, os)
 
-    private @JvmStatic fun writeField(instance: Any, field: Field, os: OrderedOutputStream) {
-        val ref = field.get(instance)
-        val meta = field.getAnnotation(StructField::class.java)
-        os.write(ByteArray(meta.skip))
-        val primitive = Primitive[field.type]
-        if (primitive != null) {
-            // Field is a primitive type
-            primitive.write(ref, os, meta.limit)
-        } else if (field.type.isArray) {
-            // Field is an array
-            if (ref == null) {
-                // Check if instantiated
-                if (meta.nullable) return
-                throw InstantiationException("Cannnot instantiate array of unknown length")
-            }
-            writeArray(instance, field, os, 0)
-        } else {
-            // Field is a regular Object
-            if (ref == null) {
-                // Skip over
-                LOG.log(Level.FINE) { "Instantiating $field" }
-                os.write(ByteArray(sizeof(instantiate(field.type))))
-            } else {
-                pack(ref, os)
-            }
-        }
+    /**
+     * Writes a struct at the buffer's position, in the buffer's byte order, and advances past it
+     */
+    public @JvmStatic fun pack(instance: Any, buf: ByteBuffer) {
+        buf.position(pack(instance, buf, buf.position()))
     }
 
-    private @JvmStatic fun writeArray(instance: Any, field: Field, os: OrderedOutputStream, depth: Int) {
-        val meta = field.getAnnotation(StructField::class.java)
-        val dimensions = getArrayDepth(field.type)
-        val elemType = getArrayType(field.type)
-        val primitive = Primitive[elemType]
-        val ref = field.get(instance)
-        for (i in 0..Array.getLength(ref) - 1) {
-            val elem = Array.get(ref, i)
-            if (depth == dimensions) {
-                // Not a nested array
-                if (primitive != null) {
-                    // Element is a primitive type
-                    primitive.write(elem, os, meta.limit)
-                } else {
-                    if (elem == null) {
-                        // Instantiate if needed
-                        throw UnsupportedOperationException("Null objects not yet supported")
-                    }
-                    pack(elem, os)
-                }
-                Array.set(ref, i, elem)
-            } else {
-                writeArray(elem, field, os, depth + 1)
-            }
-        }
+    /**
+     * Writes a struct at an absolute offset, in the buffer's byte order. The buffer's position is unchanged.
+     *
+     * @return the offset just past the struct
+     */
+    public @JvmStatic fun pack(instance: Any, buf: ByteBuffer, offset: Int): Int {
+        val output = ByteBufferDataOutput(buf, offset)
+        codec(instance.javaClass).write(instance, output)
+        return output.position()
     }
 
+    /**
+     * Writes a struct at bit granularity, see [StructField.bits]
+     */
+    public @JvmStatic fun pack(instance: Any, bits: BitBuffer) = BitCodec.of(instance.javaClass).write(instance, bits)
+
     public @JvmStatic fun unpack(out: Any, vararg b: Byte) {
         try {
-            unpack(out, OrderedInputStream(ByteArrayInputStream(b)))
+            unpack(out, ByteBuffer.wrap(b))
         } catch (ex: IOException) {
             LOG.log(Level.SEVERE, { null }, ex)
         } catch (ex: InstantiationException) {
@@ -143,162 +113,211 @@ public object Struct {
 
     }
 
-    public @JvmStatic fun unpack(instance: Any, `is`: OrderedInputStream) {
-        for (field in getFields(instance.javaClass)) {
-            val accessible = field.isAccessible
-            field.isAccessible = true
-            val `var` = readField(instance, field, `is`)
-            field.set(instance, `var`)
-            field.isAccessible = accessible
-        }
+    /**
+     * Reads a new instance, the only way to read immutable types, see [StructConstructor]
+     */
+    @Throws(IOException::class, InstantiationException::class)
+    public @JvmStatic fun <T : Any> decode(type: Class<T>, vararg b: Byte): T = decode(type, ByteBuffer.wrap(b))
+
+    /**
+     * Reads a new instance at the buffer's position, in the buffer's byte order, and advances past it
+     */
+    @Throws(IOException::class, InstantiationException::class)
+    public @JvmStatic fun <T : Any> decode(type: Class<T>, buf: ByteBuffer): T {
+        val input = ByteBufferDataInput(buf)
+        val instance = codec(type).decode(input)
+        buf.position(input.position())
+        return instance
     }
 
-    private fun instantiate(type: Class<*>): Any {
-        val exStack = LinkedList<Throwable>()
-        try {
-            return type.newInstance()!!
-        } catch (t: Throwable) {
-            exStack.add(0, t)
-        }
+    public @JvmStatic fun unpack(instance: Any, `is`: OrderedInputStream) = codec(instance.javaClass).read(instance, `is`)
 
-        try {
-            val ctor = type.declaredConstructors[0]
-            val accessible = ctor.isAccessible
-            ctor.isAccessible = true
-            val instance = ctor.newInstance()!!
-            ctor.isAccessible = accessible
-            return instance
-        } catch (t: Throwable) {
-            exStack.add(0, t)
-        }
+    /**
+     * Reads a struct at bit granularity, see [StructField.bits]
+     */
+    public @JvmStatic fun unpack(instance: Any, bits: BitBuffer) = BitCodec.of(instance.javaClass).read(instance, bits)
 
-        throw InstantiationException(exStack.toString())
+    /**
+     * Reads a struct at the buffer's position, in the buffer's byte order, and advances past it
+     */
+    public @JvmStatic fun unpack(instance: Any, buf: ByteBuffer) {
+        buf.position(unpack(instance, buf, buf.position()))
     }
 
-    private fun getArrayDepth(clazz: Class<*>): Int {
-        return clazz.name.lastIndexOf('[')
+    /**
+     * Reads a struct at an absolute offset, in the buffer's byte order. The buffer's position is unchanged.
+     *
+     * @return the offset just past the struct
+     */
+    public @JvmStatic fun unpack(instance: Any, buf: ByteBuffer, offset: Int): Int {
+        val input = ByteBufferDataInput(buf, offset)
+        codec(instance.javaClass).read(instance, input)
+        return input.position()
     }
 
-    private fun getArrayType(clazz: Class<*>): Class<*> {
-        var elemType = clazz
-        for (i in 0..(getArrayDepth(clazz) + 1) - 1) {
-            elemType = elemType.componentType
-        }
-        return elemType
+    /**
+     * Decodes consecutive records of a fixed layout in parallel, from the buffer's position, and advances past them.
+     * Record `i` is at `position + i * sizeof(type)`, disjoint slices are decoded by separate tasks.
+     *
+     * @param pool Where to run, the common pool by default
+     * @throws IllegalArgumentException if the layout is not fixed, see [isFixed]
+     * @throws BufferUnderflowException if fewer than [count] records remain
+     */
+    @JvmOverloads
+    public @JvmStatic fun <T : Any> unpackAll(type: Class<T>, buf: ByteBuffer, count: Int,
+                                              pool: ForkJoinPool = ForkJoinPool.commonPool()): kotlin.Array<T> {
+        val size = fixedSize(type)
+        if (count.toLong() * size > buf.remaining()) throw BufferUnderflowException()
+        @Suppress("UNCHECKED_CAST")
+        val out = Array.newInstance(type, count) as kotlin.Array<T>
+        pool.invoke(UnpackTask(codec(type), buf, buf.position(), size, out, 0, count, threshold(count, pool.parallelism)))
+        buf.position(buf.position() + count * size)
+        return out
     }
 
-    private fun readArray(ref: Any, field: Field, `is`: OrderedInputStream, depth: Int) {
-        val meta = field.getAnnotation(StructField::class.java)
-        val dimensions = getArrayDepth(field.type)
-        val elemType = getArrayType(field.type)
-        val primitive = Primitive[elemType]
-        for (i in 0..Array.getLength(ref) - 1) {
-            var elem: Any? = Array.get(ref, i)
-            if (depth == dimensions) {
-                // Not a nested array
-                if (primitive != null) {
-                    // Element is a primitive type
-                    elem = primitive.read(`is`, meta.limit)
-                } else {
-                    if (elem == null) {
-                        // Instantiate if needed
-                        LOG.log(Level.FINE) { "Instantiating $field" }
-                        elem = instantiate(elemType)
-                    }
-                    unpack(elem, `is`)
-                }
-                Array.set(ref, i, elem)
-            } else {
-                readArray(elem!!, field, `is`, depth + 1)
-            }
-        }
+    /**
+     * Encodes records of a fixed layout in parallel, at the buffer's position, and advances past them.
+     * The layout is that of the array's component type.
+     *
+     * @param pool Where to run, the common pool by default
+     * @throws IllegalArgumentException if the layout is not fixed, see [isFixed]
+     * @throws BufferOverflowException if the records do not fit
+     */
+    @JvmOverloads
+    public @JvmStatic fun <T : Any> packAll(array: kotlin.Array<out T>, buf: ByteBuffer,
+                                            pool: ForkJoinPool = ForkJoinPool.commonPool()) {
+        @Suppress("UNCHECKED_CAST")
+        val type = array.javaClass.componentType as Class<T>
+        val size = fixedSize(type)
+        if (array.size.toLong() * size > buf.remaining()) throw BufferOverflowException()
+        pool.invoke(PackTask(codec(type), buf, buf.position(), size, array, 0, array.size,
+                threshold(array.size, pool.parallelism)))
+        buf.position(buf.position() + array.size * size)
     }
 
-    private fun readField(instance: Any, field: Field, `is`: OrderedInputStream): Any? {
-        val meta = field.getAnnotation(StructField::class.java)
-        `is`.skipBytes(meta.skip)
-        var ref: Any?
-        val primitive = Primitive[field.type]
-        if (primitive != null) {
-            // Field is a primitive type
-            return primitive.read(`is`, meta.limit)
-        } else if (field.type.isArray) {
-            // Field is an array
-            ref = field.get(instance)
-            if (ref == null) {
-                // Check if instantiated
-                throw InstantiationException("Cannnot instantiate array of unknown length")
-            }
-            readArray(ref, field, `is`, 0)
-        } else {
-            // Field is a regular Object
-            ref = field.get(instance)
-            if (ref == null) {
-                // Instantiate if needed
-                LOG.log(Level.FINE) { "Instantiating $field" }
-                ref = instantiate(field.type)
-            }
-            unpack(ref, `is`)
-            field.set(instance, ref)
+    private fun fixedSize(type: Class<*>): Int {
+        val layout = StructLayout.of(type)
+        if (!layout.isFixed) throw IllegalArgumentException("${type.name} does not have a fixed size")
+        return layout.size
+    }
+
+    private val codecs = object : ClassValue<StructCodec<*>>() {
+        override fun computeValue(type: Class<*>) = generated(type) ?: CodecCompiler.compile(type)
+    }
+
+    private val metered = object : ClassValue<StructCodec<*>>() {
+        @Suppress("UNCHECKED_CAST")
+        override fun computeValue(type: Class<*>) = MeteredCodec(codecs.get(type) as StructCodec<Any>, type as Class<Any>)
+    }
+
+    /**
+     * @return the build-time generated codec for the given class, if any
+     */
+    private fun generated(type: Class<*>): StructCodec<*>? {
+        val name = type.name + StructCodec.GENERATED_SUFFIX
+        val generated = try {
+            Class.forName(name, true, type.classLoader)
+        } catch (ignored: ClassNotFoundException) {
+            return null
         }
-        return ref
+        LOG.log(Level.FINE) { "Using generated codec $name" }
+        return generated.newInstance() as StructCodec<*>
     }
 
-    private fun sizeof(type: Class<*>, meta: StructField, ref: Any?): Int {
-        var size = 0
-        val primitive = Primitive[type]
-        if (primitive != null) {
+    /**
+     * @param type The struct class
+     * @return the codec for the given class, compiled on first use. Metered while [StructMetrics.enabled]
+     */
+    @Suppress("UNCHECKED_CAST")
+    public @JvmStatic fun <T : Any> codec(type: Class<T>): StructCodec<T> =
+            (if (StructMetrics.enabled) metered else codecs).get(type) as StructCodec<T>
+
+    /**
+     * @param type The struct class
+     * @return the codec for the given class when nested in another, never metered. Used by codecs for their members
+     */
+    @Suppress("UNCHECKED_CAST")
+    public @JvmStatic fun <T : Any> nestedCodec(type: Class<T>): StructCodec<T> = codecs.get(type) as StructCodec<T>
+
+    private fun sizeof(member: StructLayout.Member, ref: Any?): Int {
+        val meta = member.meta
+        if (member.size >= 0) return member.size + meta.skip
+        val primitive = member.primitive
+        if (member.varint) {
+            if (ref == null) throw InstantiationException("Cannnot instantiate array of unknown length")
+            return sizeofVarint(member, ref, member.dimensions) + meta.skip
+        }
+        if (member.dimensions == 0 && primitive != null) {
             // Field is primitive
-            var sz = primitive.size
-            if (sz < 0) {
-                if (meta.limit <= 0) {
-                    // Dynamic length String
-                    return Integer.MIN_VALUE
-                }
-                sz = meta.limit // Limit string
-            }
-            size += (if ((meta.limit > 0)) Math.min(sz, meta.limit) else sz) + meta.skip
-        } else if (type.isArray) {
+            return sizeof(primitive, meta) + meta.skip
+        } else if (member.dimensions > 0) {
             // Field is an array
             if (ref == null) {
                 // Check if instantiated
                 throw InstantiationException("Cannnot instantiate array of unknown length")
             }
-            for (i in 0..Array.getLength(ref) - 1) {
-                size += sizeof(type.componentType, meta, Array.get(ref, i))
-            }
+            return sizeofArray(member, ref, member.dimensions) + meta.skip
         } else {
             // Field is a regular Object
             val sz = sizeof(ref ?: run {
                 // Instantiate if needed
-                LOG.log(Level.FINE) { "Instantiating $type" }
-                type.newInstance()!!
+                LOG.log(Level.FINE) { "Instantiating ${member.field}" }
+                nestedCodec(member.elementType).instantiate()
             })
-            size += (if ((meta.limit > 0)) Math.min(sz, meta.limit) else sz) + meta.skip
+            return (if ((meta.limit > 0)) Math.min(sz, meta.limit) else sz) + meta.skip
         }
-        return size
     }
 
-    private fun getFields(clazz: Class<*>): List<Field> {
-        val fields = clazz.declaredFields
-        // Filter
-        val al = LinkedList<Field>()
-        for (ref in fields) {
-            val field = ref.getAnnotation(StructField::class.java)
-            if (field != null) {
-                al.add(ref)
-            }
+    private fun sizeof(primitive: Primitive, meta: StructField): Int {
+        if (primitive.size >= 0) return primitive.size
+        if (meta.limit <= 0) {
+            // Dynamic length String
+            return Integer.MIN_VALUE
         }
-        // Sort
-        Collections.sort<Field>(al, object : Comparator<Field> {
-            override fun compare(o1: Field, o2: Field): Int {
-                return o1.getAnnotation(StructField::class.java).index - o2.getAnnotation(StructField::class.java).index
+        return meta.limit // Limit string
+    }
+
+    /**
+     * @param value A boxed scalar, string or array of them
+     * @param dimensions Remaining array dimensions
+     */
+    private fun sizeofVarint(member: StructLayout.Member, value: Any, dimensions: Int): Int = when {
+        dimensions > 1 -> (value as kotlin.Array<*>).sumBy { sizeofVarint(member, it!!, dimensions - 1) }
+        dimensions == 1 -> when (value) {
+            is ShortArray -> value.sumBy { StructCodec.sizeofVarLong(it.toLong()) }
+            is CharArray -> value.sumBy { StructCodec.sizeofVarLong(it.toLong()) }
+            is IntArray -> value.sumBy { StructCodec.sizeofVarLong(it.toLong()) }
+            is LongArray -> value.sumBy { StructCodec.sizeofVarLong(it) }
+            else -> (value as kotlin.Array<*>).sumBy { sizeofVarint(member, it!!, 0) }
+        }
+        value is String -> {
+            val len = value.toByteArray(Charsets.UTF_8).size.let { if (member.meta.limit > 0) Math.min(it, member.meta.limit) else it }
+            StructCodec.sizeofUnsigned(len.toLong()) + len
+        }
+        value is Char -> StructCodec.sizeofVarLong(value.toLong())
+        else -> StructCodec.sizeofVarLong((value as Number).toLong())
+    }
+
+    /**
+     * @param dimensions Remaining array dimensions
+     */
+    private fun sizeofArray(member: StructLayout.Member, array: Any, dimensions: Int): Int {
+        val length = Array.getLength(array)
+        val primitive = member.primitive
+        if (dimensions == 1 && primitive != null) {
+            return length * sizeof(primitive, member.meta)
+        }
+        var size = 0
+        for (elem in array as kotlin.Array<*>) {
+            size += when {
+                dimensions > 1 -> sizeofArray(member, elem!!, dimensions - 1)
+                else -> sizeof(elem ?: throw UnsupportedOperationException("Null objects not yet supported"))
             }
-        })
-        return al
+        }
+        return size
     }
 
-    private enum class Primitive(val type: String, val size: Int) {
+    internal enum class Primitive(val type: String, val size: Int) {
 
         BYTE("byte", 1),
         BOOLEAN("boolean", 1),
@@ -314,62 +333,5 @@ public object Struct {
             private val vals by lazy(LazyThreadSafetyMode.NONE) { values.toMapBy { it.type } }
             operator public fun get(type: Class<*>): Primitive? = vals[type.name]
         }
-
-        /**
-         * Read a primitive
-         *
-         * @param is
-         * @param limit Maximum amount of bytes to read
-         * @return The primitive
-         * @throws IOException
-         */
-        fun read(`is`: OrderedInputStream, limit: Int): Any? {
-            when (this) {
-                BOOLEAN -> return `is`.readBoolean()
-                BYTE -> return `is`.readByte()
-                CHAR -> return `is`.readChar()
-                SHORT -> return `is`.readShort()
-                INT -> return `is`.readInt()
-                LONG -> return `is`.readLong()
-                FLOAT -> return `is`.readFloat()
-                DOUBLE -> return `is`.readDouble()
-                STRING -> {
-                    if (limit > 0) {
-                        // Fixed size
-                        val b = ByteArray(limit)
-                        `is`.readFully(b)
-                        return String(b, StandardCharsets.UTF_8)
-                    }
-                    return `is`.readString(limit) // NUL terminated
-                }
-                else -> return null
-            }
-        }
-
-        public fun write(o: Any, os: OrderedOutputStream, limit: Int) {
-            when (this) {
-                BOOLEAN -> os.writeBoolean(o as Boolean)
-                BYTE -> os.writeByte((o as Byte).toInt())
-                CHAR -> os.writeChar((o as Char).toInt())
-                SHORT -> os.writeShort((o as Short).toInt())
-                INT -> os.writeInt(o as Int)
-                LONG -> os.writeLong(o as Long)
-                FLOAT -> os.writeFloat(o as Float)
-                DOUBLE -> os.writeDouble(o as Double)
-                STRING -> {
-                    val s = o as String
-                    val b = s.toByteArray(StandardCharsets.UTF_8)
-                    if (limit > 0) {
-                        // Fixed size
-                        val min = Math.min(limit, b.size)
-                        os.write(b, 0, min)
-                        if (min == b.size) os.write(ByteArray(limit - b.size)) // Padding
-                    } else {
-                        os.write(b, 0, b.size)
-                        os.write(0) // NUL
-                    }
-                }
-            }
-        }
     }
 }
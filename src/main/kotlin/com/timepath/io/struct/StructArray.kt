@@ -0,0 +1,245 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.ByteBufferDataOutput
+import java.io.DataInput
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.NoSuchElementException
+
+/**
+ * Column-oriented storage for up to [capacity] records of a fixed layout, one direct buffer per [StructField].
+ * Each column holds the encoded bytes of its field, back to back and without [StructField.skip] padding,
+ * so loading is a copy and scanning a column touches nothing else.
+ * Rows are only materialized on request, see [get] and [iterator].
+ *
+ * ```
+ * val entries = StructArray(Entry::class.java, count, ByteOrder.LITTLE_ENDIAN)
+ * entries.load(ByteBufferDataInput(DataUtils.mapFile(file)), count)
+ * val health = entries.column("health")
+ * for (i in 0..entries.size - 1) total += health.getInt(i)
+ * ```
+ *
+ * Not safe for concurrent modification.
+ *
+ * @param order Byte order of the data, which must match that of any input loaded from
+ * @author TimePath
+ */
+public class StructArray<T : Any> @JvmOverloads constructor(public val type: Class<T>,
+                                                            public val capacity: Int,
+                                                            public val order: ByteOrder = ByteOrder.BIG_ENDIAN)
+: Iterable<T> {
+
+    private val layout = StructLayout.of(type)
+    private val codec = Struct.codec(type)
+    private val fields = CodecCompiler.fields(type)
+
+    init {
+        if (!layout.isFixed) throw IllegalArgumentException("${type.name} does not have a fixed size")
+    }
+
+    /**
+     * A single field of every record
+     */
+    public class Column internal constructor(public val member: StructLayout.Member,
+                                             /** Encoded values, [width] bytes each */
+                                             public val buffer: ByteBuffer) {
+
+        /**
+         * Size of each value in bytes
+         */
+        public val width: Int = member.size
+
+        private val reverse = member.meta.reverse
+        internal val skip = member.meta.skip
+
+        internal val input = ByteBufferDataInput(buffer, 0)
+        internal val output = ByteBufferDataOutput(buffer, 0)
+
+        public fun getBoolean(i: Int): Boolean = buffer.get(i * width).toInt() != 0
+        public fun setBoolean(i: Int, v: Boolean): Unit = buffer.put(i * width, (if (v) 1 else 0).toByte()).let { Unit }
+
+        public fun getByte(i: Int): Byte = buffer.get(i * width)
+        public fun setByte(i: Int, v: Byte): Unit = buffer.put(i * width, v).let { Unit }
+
+        public fun getChar(i: Int): Char = buffer.getChar(i * width).let {
+            if (reverse) Character.reverseBytes(it) else it
+        }
+
+        public fun setChar(i: Int, v: Char): Unit = buffer.putChar(i * width,
+                if (reverse) Character.reverseBytes(v) else v).let { Unit }
+
+        public fun getShort(i: Int): Short = buffer.getShort(i * width).let {
+            if (reverse) java.lang.Short.reverseBytes(it) else it
+        }
+
+        public fun setShort(i: Int, v: Short): Unit = buffer.putShort(i * width,
+                if (reverse) java.lang.Short.reverseBytes(v) else v).let { Unit }
+
+        public fun getInt(i: Int): Int = buffer.getInt(i * width).let {
+            if (reverse) Integer.reverseBytes(it) else it
+        }
+
+        public fun setInt(i: Int, v: Int): Unit = buffer.putInt(i * width,
+                if (reverse) Integer.reverseBytes(v) else v).let { Unit }
+
+        public fun getLong(i: Int): Long = buffer.getLong(i * width).let {
+            if (reverse) java.lang.Long.reverseBytes(it) else it
+        }
+
+        public fun setLong(i: Int, v: Long): Unit = buffer.putLong(i * width,
+                if (reverse) java.lang.Long.reverseBytes(v) else v).let { Unit }
+
+        public fun getFloat(i: Int): Float = when {
+            reverse -> java.lang.Float.intBitsToFloat(Integer.reverseBytes(buffer.getInt(i * width)))
+            else -> buffer.getFloat(i * width)
+        }
+
+        public fun setFloat(i: Int, v: Float): Unit = when {
+            reverse -> buffer.putInt(i * width, Integer.reverseBytes(java.lang.Float.floatToRawIntBits(v)))
+            else -> buffer.putFloat(i * width, v)
+        }.let { Unit }
+
+        public fun getDouble(i: Int): Double = when {
+            reverse -> java.lang.Double.longBitsToDouble(java.lang.Long.reverseBytes(buffer.getLong(i * width)))
+            else -> buffer.getDouble(i * width)
+        }
+
+        public fun setDouble(i: Int, v: Double): Unit = when {
+            reverse -> buffer.putLong(i * width, java.lang.Long.reverseBytes(java.lang.Double.doubleToRawLongBits(v)))
+            else -> buffer.putDouble(i * width, v)
+        }.let { Unit }
+
+        override fun toString() = "Column($member)"
+    }
+
+    private val columns: Array<Column> = Array(layout.members.size) {
+        val member = layout.members[it]
+        val bytes = capacity.toLong() * member.size
+        if (bytes > Int.MAX_VALUE) throw IllegalArgumentException("Column $member would exceed 2 GiB")
+        Column(member, ByteBuffer.allocateDirect(bytes.toInt()).order(order))
+    }
+
+    /**
+     * Encoded size of a record, including padding
+     */
+    private val recordSize = layout.size
+
+    /**
+     * Number of records held
+     */
+    public var size: Int = 0
+        private set
+
+    /**
+     * @throws NoSuchElementException if there is no such field
+     */
+    public fun column(name: String): Column = columns[layout.indexOf(name)]
+
+    /**
+     * Appends encoded records, as written by [Struct.pack]
+     *
+     * @param count Maximum number of records
+     * @return the number of records loaded, fewer than requested only if full
+     */
+    @Throws(IOException::class)
+    public fun load(input: DataInput, count: Int): Int {
+        val n = Math.min(count, capacity - size)
+        val scratch = ByteArray(recordSize)
+        for (i in 0..n - 1) {
+            input.readFully(scratch)
+            var offset = 0
+            for (column in columns) {
+                offset += column.skip
+                column.buffer.position((size + i) * column.width)
+                column.buffer.put(scratch, offset, column.width)
+                offset += column.width
+            }
+        }
+        size += n
+        return n
+    }
+
+    /**
+     * Appends all whole records remaining in a buffer, as written by [Struct.pack], and advances past them
+     *
+     * @return the number of records loaded
+     */
+    public fun load(buf: ByteBuffer): Int {
+        val input = ByteBufferDataInput(buf)
+        val n = load(input, buf.remaining() / recordSize)
+        buf.position(input.position())
+        return n
+    }
+
+    /**
+     * Appends a record
+     *
+     * @throws IllegalStateException if full
+     */
+    public fun add(value: T) {
+        if (size == capacity) throw IllegalStateException("StructArray is full")
+        write(size, value)
+        size++
+    }
+
+    /**
+     * Encodes over an existing record
+     */
+    public operator fun set(index: Int, value: T) {
+        check(index)
+        write(index, value)
+    }
+
+    private fun write(index: Int, value: T) {
+        for ((i, column) in columns.withIndex()) {
+            column.output.position(index * column.width)
+            fields[i].write(value, column.output)
+        }
+    }
+
+    /**
+     * Decodes a record into an existing instance
+     */
+    public fun get(index: Int, out: T): T {
+        check(index)
+        for ((i, column) in columns.withIndex()) {
+            column.input.position(index * column.width)
+            fields[i].read(out, column.input)
+        }
+        return out
+    }
+
+    /**
+     * Decodes a record into a new instance, also for immutable types
+     */
+    public operator fun get(index: Int): T {
+        if (codec.isMutable) return get(index, codec.instantiate())
+        check(index)
+        // Immutable types are only decoded whole, so reassemble the record as written by Struct.pack
+        val record = ByteBuffer.allocate(recordSize).order(order)
+        for (column in columns) {
+            record.position(record.position() + column.skip)
+            val value = column.buffer.duplicate()
+            value.limit((index + 1) * column.width).position(index * column.width)
+            record.put(value)
+        }
+        return codec.decode(ByteBufferDataInput(record, 0))
+    }
+
+    private fun check(index: Int) {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("$index")
+    }
+
+    /**
+     * Materializes each record as it is reached
+     */
+    override fun iterator(): Iterator<T> = object : Iterator<T> {
+        var i = 0
+        override fun hasNext() = i < size
+        override fun next() = if (hasNext()) get(i++) else throw NoSuchElementException()
+    }
+
+    override fun toString() = "StructArray(${type.name}, $size/$capacity)"
+}
@@ -0,0 +1,482 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.ByteBufferDataOutput
+import com.timepath.io.OrderedInputStream
+import com.timepath.io.OrderedOutputStream
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.EOFException
+import java.io.IOException
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+
+/**
+ * A reader/writer specialized for a single struct class.
+ * Built once per class and cached, see [Struct.codec].
+ * Classes named after the struct class with [GENERATED_SUFFIX] appended are used in preference to compiling one at
+ * runtime, these are emitted by the `processor` module at build time.
+ *
+ * @author TimePath
+ */
+public abstract class StructCodec<T : Any> {
+
+    public companion object {
+
+        /**
+         * Suffix of generated codec class names, appended to the binary name of the struct class
+         */
+        public const val GENERATED_SUFFIX: String = "\$\$StructCodec"
+
+        /**
+         * Reads a string, either fixed size or NUL terminated. Fixed size strings end at the first NUL.
+         * ASCII is decoded without going through UTF-8.
+         *
+         * @param limit Size in bytes, or 0 if NUL terminated
+         * @param strings Where to look up repeated values, or null to always create a new string
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readString(input: DataInput, limit: Int, strings: StringTable? = null): String {
+            var b: ByteArray
+            var len = 0
+            if (limit > 0) {
+                // Fixed size
+                b = scratch(limit)
+                input.readFully(b, 0, limit)
+                while (len < limit && b[len] != 0.toByte()) len++
+            } else {
+                // NUL terminated
+                b = scratch(64)
+                while (true) {
+                    val c = input.readByte()
+                    if (c == 0.toByte()) break
+                    if (len == b.size) b = grow(b, len * 2)
+                    b[len++] = c
+                }
+            }
+            return strings?.get(b, 0, len) ?: decode(b, 0, len)
+        }
+
+        /**
+         * Decodes UTF-8, taking a shortcut for ASCII
+         */
+        internal fun decode(b: ByteArray, off: Int, len: Int): String {
+            for (i in off..off + len - 1) {
+                if (b[i] < 0) return String(b, off, len, StandardCharsets.UTF_8)
+            }
+            return String(b, off, len, StandardCharsets.ISO_8859_1)
+        }
+
+        /**
+         * Writes a string, either fixed size or NUL terminated
+         *
+         * @param limit Size in bytes, or 0 if NUL terminated
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun writeString(output: DataOutput, s: String, limit: Int) {
+            val b = s.toByteArray(StandardCharsets.UTF_8)
+            if (limit > 0) {
+                // Fixed size
+                val min = Math.min(limit, b.size)
+                output.write(b, 0, min)
+                pad(output, limit - min)
+            } else {
+                output.write(b, 0, b.size)
+                output.write(0) // NUL
+            }
+        }
+
+        /**
+         * Reads a ZigZag LEB128 varint, see [StructField.varint]
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun readVarLong(input: DataInput): Long {
+            val z = readUnsigned(input)
+            return (z ushr 1) xor -(z and 1)
+        }
+
+        /**
+         * Writes a ZigZag LEB128 varint, 1 byte for values within -64..63, see [StructField.varint]
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun writeVarLong(output: DataOutput, v: Long): Unit = writeUnsigned(output, (v shl 1) xor (v shr 63))
+
+        /**
+         * @return the encoded size of [writeVarLong]
+         */
+        public @JvmStatic fun sizeofVarLong(v: Long): Int = sizeofUnsigned((v shl 1) xor (v shr 63))
+
+        internal fun readUnsigned(input: DataInput): Long {
+            var result = 0L
+            var shift = 0
+            while (shift < 64) {
+                val b = input.readByte().toInt()
+                result = result or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) return result
+                shift += 7
+            }
+            throw IOException("Malformed varint")
+        }
+
+        internal fun writeUnsigned(output: DataOutput, v: Long) {
+            val b = scratch(10)
+            var n = 0
+            var rest = v
+            while (rest and 0x7FL.inv() != 0L) {
+                b[n++] = ((rest and 0x7F) or 0x80).toByte()
+                rest = rest ushr 7
+            }
+            b[n++] = rest.toByte()
+            output.write(b, 0, n)
+        }
+
+        internal fun sizeofUnsigned(v: Long): Int {
+            var n = 1
+            var rest = v ushr 7
+            while (rest != 0L) {
+                n++
+                rest = rest ushr 7
+            }
+            return n
+        }
+
+        /**
+         * Reads a string prefixed by its varint byte length, see [StructField.varint]
+         *
+         * @param limit Maximum size in bytes, or 0 if unbounded
+         * @param strings Where to look up repeated values, or null to always create a new string
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readPrefixedString(input: DataInput, limit: Int, strings: StringTable? = null): String {
+            val n = readUnsigned(input)
+            if (n < 0 || n > (if (limit > 0) limit else Int.MAX_VALUE - 8)) throw IOException("Invalid string length $n")
+            val len = n.toInt()
+            // Grown as the bytes arrive, so a corrupt length ends at the end of input rather than allocating it all
+            var b = scratch(Math.min(len, CHUNK))
+            var read = 0
+            while (read < len) {
+                if (read == b.size) b = grow(b, Math.min(len, b.size * 2))
+                val chunk = Math.min(len, b.size) - read
+                input.readFully(b, read, chunk)
+                read += chunk
+            }
+            return strings?.get(b, 0, len) ?: decode(b, 0, len)
+        }
+
+        /**
+         * Writes a string prefixed by its varint byte length, see [StructField.varint]
+         *
+         * @param limit Maximum size in bytes, or 0 if unbounded
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun writePrefixedString(output: DataOutput, s: String, limit: Int) {
+            val b = s.toByteArray(StandardCharsets.UTF_8)
+            val len = if (limit > 0) Math.min(limit, b.size) else b.size
+            writeUnsigned(output, len.toLong())
+            output.write(b, 0, len)
+        }
+
+        /**
+         * Checks an element count read for a [StructField.lengthRef] array
+         *
+         * @throws IOException if negative or too large for an array
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun length(count: Long): Int {
+            if (count < 0 || count > Int.MAX_VALUE - 8) throw IOException("Invalid array length $count")
+            return count.toInt()
+        }
+
+        /**
+         * Skips exactly [n] bytes, unlike [DataInput.skipBytes] which may give up early
+         *
+         * @throws EOFException if the input ends first
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun skip(input: DataInput, n: Int) {
+            var remaining = n
+            while (remaining > 0) {
+                val skipped = input.skipBytes(remaining)
+                if (skipped > 0) {
+                    remaining -= skipped
+                } else {
+                    input.readByte() // Throws at EOF
+                    remaining--
+                }
+            }
+        }
+
+        /**
+         * Writes [n] zero bytes without allocating
+         */
+        @Throws(IOException::class)
+        public @JvmStatic fun pad(output: DataOutput, n: Int) {
+            var remaining = n
+            while (remaining > 0) {
+                val len = Math.min(remaining, ZEROS.size)
+                output.write(ZEROS, 0, len)
+                remaining -= len
+            }
+        }
+
+        // Bulk primitive array transfers, in the byte order of the input/output
+
+        @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: BooleanArray) {
+            readBulk(input, a.size, 1, false) { buf, off -> for (i in off..off + buf.remaining() - 1) a[i] = buf.get().toInt() != 0 }
+        }
+
+        @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: ByteArray): Unit = input.readFully(a)
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: CharArray, reverse: Boolean = false) {
+            readBulk(input, a.size, 2, reverse) { buf, off -> buf.asCharBuffer().get(a, off, buf.remaining() / 2) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: ShortArray, reverse: Boolean = false) {
+            readBulk(input, a.size, 2, reverse) { buf, off -> buf.asShortBuffer().get(a, off, buf.remaining() / 2) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: IntArray, reverse: Boolean = false) {
+            readBulk(input, a.size, 4, reverse) { buf, off -> buf.asIntBuffer().get(a, off, buf.remaining() / 4) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: LongArray, reverse: Boolean = false) {
+            readBulk(input, a.size, 8, reverse) { buf, off -> buf.asLongBuffer().get(a, off, buf.remaining() / 8) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: FloatArray, reverse: Boolean = false) {
+            readBulk(input, a.size, 4, reverse) { buf, off -> buf.asFloatBuffer().get(a, off, buf.remaining() / 4) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun readArray(input: DataInput, a: DoubleArray, reverse: Boolean = false) {
+            readBulk(input, a.size, 8, reverse) { buf, off -> buf.asDoubleBuffer().get(a, off, buf.remaining() / 8) }
+        }
+
+        @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: BooleanArray) {
+            writeBulk(output, a.size, 1, false) { buf, off -> for (i in off..off + buf.remaining() - 1) buf.put((if (a[i]) 1 else 0).toByte()) }
+        }
+
+        @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: ByteArray): Unit = output.write(a)
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: CharArray, reverse: Boolean = false) {
+            writeBulk(output, a.size, 2, reverse) { buf, off -> buf.asCharBuffer().put(a, off, buf.remaining() / 2) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: ShortArray, reverse: Boolean = false) {
+            writeBulk(output, a.size, 2, reverse) { buf, off -> buf.asShortBuffer().put(a, off, buf.remaining() / 2) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: IntArray, reverse: Boolean = false) {
+            writeBulk(output, a.size, 4, reverse) { buf, off -> buf.asIntBuffer().put(a, off, buf.remaining() / 4) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: LongArray, reverse: Boolean = false) {
+            writeBulk(output, a.size, 8, reverse) { buf, off -> buf.asLongBuffer().put(a, off, buf.remaining() / 8) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: FloatArray, reverse: Boolean = false) {
+            writeBulk(output, a.size, 4, reverse) { buf, off -> buf.asFloatBuffer().put(a, off, buf.remaining() / 4) }
+        }
+
+        /**
+         * @param reverse Use the opposite byte order
+         */
+        @JvmOverloads @Throws(IOException::class)
+        public @JvmStatic fun writeArray(output: DataOutput, a: DoubleArray, reverse: Boolean = false) {
+            writeBulk(output, a.size, 8, reverse) { buf, off -> buf.asDoubleBuffer().put(a, off, buf.remaining() / 8) }
+        }
+    }
+
+    /**
+     * @return a new, empty instance
+     * @throws InstantiationException if there is no usable nullary constructor
+     */
+    @Throws(InstantiationException::class)
+    public abstract fun instantiate(): T
+
+    /**
+     * Reads every field of the struct into an existing instance
+     *
+     * @throws UnsupportedOperationException if not [isMutable]
+     */
+    @Throws(IOException::class, InstantiationException::class)
+    public abstract fun read(instance: T, input: DataInput)
+
+    /**
+     * False if instances are immutable, so can only be created by [decode], see [StructConstructor]
+     */
+    public open val isMutable: Boolean get() = true
+
+    /**
+     * Reads a new instance
+     */
+    @Throws(IOException::class, InstantiationException::class)
+    public open fun decode(input: DataInput): T {
+        val instance = instantiate()
+        read(instance, input)
+        return instance
+    }
+
+    /**
+     * Writes every field of the struct
+     */
+    @Throws(IOException::class, InstantiationException::class)
+    public abstract fun write(instance: T, output: DataOutput)
+}
+
+/**
+ * Chunk size for bulk transfers through streams
+ */
+private const val CHUNK = 8192
+
+/**
+ * Per thread buffer for decoding strings
+ */
+private val SCRATCH = object : ThreadLocal<ByteArray>() {
+    override fun initialValue() = ByteArray(256)
+}
+
+/**
+ * Scratch buffers larger than this are not kept
+ */
+private const val SCRATCH_MAX = 64 * 1024
+
+/**
+ * @return this thread's scratch buffer, grown to at least [size] bytes
+ */
+private fun scratch(size: Int): ByteArray = grow(SCRATCH.get(), size)
+
+/**
+ * @return [b] if at least [size] bytes, else a copy grown to fit, kept as this thread's scratch buffer unless larger
+ * than [SCRATCH_MAX]
+ */
+private fun grow(b: ByteArray, size: Int): ByteArray {
+    if (b.size >= size) return b
+    val grown = java.util.Arrays.copyOf(b, Math.max(size, b.size * 2))
+    if (grown.size <= SCRATCH_MAX) SCRATCH.set(grown)
+    return grown
+}
+
+/**
+ * Source of padding, never written to
+ */
+private val ZEROS = ByteArray(CHUNK)
+
+private fun order(input: DataInput, reverse: Boolean) = when (input) {
+    is OrderedInputStream -> input.order()
+    is ByteBufferDataInput -> input.order()
+    else -> ByteOrder.BIG_ENDIAN
+}.let { if (reverse) it.opposite() else it }
+
+private fun order(output: DataOutput, reverse: Boolean) = when (output) {
+    is OrderedOutputStream -> output.order()
+    is ByteBufferDataOutput -> output.order()
+    else -> ByteOrder.BIG_ENDIAN
+}.let { if (reverse) it.opposite() else it }
+
+private fun ByteOrder.opposite() = if (this == ByteOrder.BIG_ENDIAN) ByteOrder.LITTLE_ENDIAN else ByteOrder.BIG_ENDIAN
+
+/**
+ * Reads [count] elements of [width] bytes.
+ * [fill] is given successive views over the data, positioned at the start, and the index of the first element.
+ */
+private inline fun readBulk(input: DataInput, count: Int, width: Int, reverse: Boolean, fill: (ByteBuffer, Int) -> Unit) {
+    val length = count * width
+    if (input is ByteBufferDataInput) {
+        // Straight out of the source buffer
+        if (input.remaining() < length) throw EOFException()
+        val p = input.position()
+        val view = input.buffer().duplicate()
+        view.limit(p + length).position(p)
+        fill(view.order(order(input, reverse)), 0)
+        input.position(p + length)
+        return
+    }
+    val chunk = ByteArray(Math.max(width, Math.min(length, CHUNK) / width * width))
+    val view = ByteBuffer.wrap(chunk).order(order(input, reverse))
+    var done = 0
+    while (done < count) {
+        val n = Math.min(count - done, chunk.size / width)
+        input.readFully(chunk, 0, n * width)
+        view.limit(n * width).position(0)
+        fill(view, done)
+        done += n
+    }
+}
+
+/**
+ * Writes [count] elements of [width] bytes.
+ * [fill] is given successive views to put the data into, positioned at the start, and the index of the first element.
+ */
+private inline fun writeBulk(output: DataOutput, count: Int, width: Int, reverse: Boolean, fill: (ByteBuffer, Int) -> Unit) {
+    val length = count * width
+    if (output is ByteBufferDataOutput) {
+        // Straight into the destination buffer
+        if (output.remaining() < length) throw BufferOverflowException()
+        val p = output.position()
+        val view = output.buffer().duplicate()
+        view.limit(p + length).position(p)
+        fill(view.order(order(output, reverse)), 0)
+        output.position(p + length)
+        return
+    }
+    val chunk = ByteArray(Math.max(width, Math.min(length, CHUNK) / width * width))
+    val view = ByteBuffer.wrap(chunk).order(order(output, reverse))
+    var done = 0
+    while (done < count) {
+        val n = Math.min(count - done, chunk.size / width)
+        view.limit(n * width).position(0)
+        fill(view, done)
+        output.write(chunk, 0, n * width)
+        done += n
+    }
+}
@@ -0,0 +1,13 @@
+package com.timepath.io.struct
+
+/**
+ * Marks the constructor to decode an immutable struct through.
+ * It must take one parameter per [StructField] member, in [StructField.index] order, of the same types.
+ * Such a constructor is also found without this marker when the class has no nullary constructor or any of its
+ * members are final, as with Kotlin data classes.
+ *
+ * @author TimePath
+ */
+@Retention
+@Target(AnnotationTarget.CONSTRUCTOR)
+annotation public class StructConstructor
@@ -0,0 +1,189 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.HashMap
+import java.util.Objects
+
+/**
+ * Encodes only the fields which changed since a previous snapshot of a struct.
+ * A delta is a bitmap of changed members, one bit per [StructLayout.members] entry starting from the least
+ * significant bit of the first byte, followed by the changed fields encoded as [Struct.pack] would.
+ * [StructField.skip] padding is omitted. Nested structs and arrays are sent whole when any part changed.
+ * A null nested struct is sent as padding, as by [Struct.pack], and stands for the blank struct receivers decode from it.
+ * As with [Struct.unpack], arrays are sized by the receiving instance, so must keep their length between snapshots.
+ *
+ * ```
+ * // Sender
+ * delta.write(snapshot, state, out)
+ * // Receiver
+ * delta.apply(mirror, in)
+ * ```
+ *
+ * Not safe for concurrent use, create one per thread.
+ *
+ * @author TimePath
+ */
+public class StructDelta<T : Any>(public val type: Class<T>) {
+
+    private val layout = StructLayout.of(type)
+    private val fields = CodecCompiler.fields(type)
+    private val changed = BooleanArray(fields.size)
+    private val bitmap = ByteArray((fields.size + 7) / 8)
+    /** What receivers decode from the padding sent for a null nested struct, by type, for comparison only */
+    private val blanks = HashMap<Class<*>, Any>()
+
+    init {
+        if (!Struct.nestedCodec(type).isMutable) {
+            throw IllegalArgumentException("${type.name} is immutable, StructDelta updates instances in place")
+        }
+    }
+
+    /**
+     * Writes the fields of [current] which differ from [previous], then brings [previous] up to date.
+     * Arrays and mutable nested structs are copied into [previous] rather than shared, reusing its instances where
+     * they fit.
+     *
+     * @return the number of changed fields
+     */
+    @Throws(IOException::class)
+    public fun write(previous: T, current: T, output: DataOutput): Int {
+        var count = 0
+        java.util.Arrays.fill(bitmap, 0)
+        for ((i, member) in layout.members.withIndex()) {
+            changed[i] = !equal(member, previous, current)
+            if (changed[i]) {
+                bitmap[i ushr 3] = (bitmap[i ushr 3].toInt() or (1 shl (i and 7))).toByte()
+                count++
+            }
+        }
+        output.write(bitmap)
+        for ((i, field) in fields.withIndex()) {
+            if (!changed[i]) continue
+            field.write(current, output)
+            copy(layout.members[i], current, previous)
+        }
+        return count
+    }
+
+    /**
+     * Applies a delta written by [write] to an instance matching the sender's previous snapshot
+     *
+     * @return the number of changed fields
+     */
+    @Throws(IOException::class)
+    public fun apply(instance: T, input: DataInput): Int {
+        input.readFully(bitmap)
+        var count = 0
+        for ((i, field) in fields.withIndex()) {
+            if (bitmap[i ushr 3].toInt() and (1 shl (i and 7)) == 0) continue
+            field.read(instance, input)
+            count++
+        }
+        return count
+    }
+
+    private fun copy(member: StructLayout.Member, from: Any, to: Any) {
+        val accessor = member.accessor
+        if (member.dimensions == 0 && member.primitive != null) return accessor.set(to, accessor.get(from))
+        val old = accessor.get(to)
+        val value = copyValue(member, member.dimensions, accessor.get(from), old)
+        if (value !== old) accessor.set(to, value)
+    }
+
+    /**
+     * Deep copies values as they are, without going through the encoding
+     *
+     * @param dimensions Remaining array dimensions
+     * @param into The previous value, updated in place if it fits
+     * @return [into], or a copy of [value]
+     */
+    private fun copyValue(member: StructLayout.Member, dimensions: Int, value: Any?, into: Any?): Any? {
+        val primitive = member.primitive
+        if (value == null) return if (dimensions == 0 && primitive == null) blank(member.elementType, into) else null
+        if (dimensions == 0) {
+            // Strings are immutable
+            if (primitive != null) return value
+            @Suppress("UNCHECKED_CAST")
+            val codec = Struct.nestedCodec(member.elementType) as StructCodec<Any>
+            if (!codec.isMutable) return value
+            val target = into ?: codec.instantiate()
+            for (nested in StructLayout.of(member.elementType).members) copy(nested, value, target)
+            return target
+        }
+        val n = java.lang.reflect.Array.getLength(value)
+        val fits = into != null && into.javaClass == value.javaClass && java.lang.reflect.Array.getLength(into) == n
+        val target = if (fits) into!! else java.lang.reflect.Array.newInstance(value.javaClass.componentType, n)
+        if (dimensions == 1 && primitive != null && primitive != Struct.Primitive.STRING) {
+            System.arraycopy(value, 0, target, 0, n)
+            return target
+        }
+        @Suppress("UNCHECKED_CAST")
+        val a = target as Array<Any?>
+        val src = value as Array<*>
+        for (i in 0..n - 1) a[i] = copyValue(member, dimensions - 1, src[i], a[i])
+        return target
+    }
+
+    /**
+     * Decodes the padding sent in place of a null nested struct, as receivers do
+     *
+     * @param into The previous value, read into if mutable
+     */
+    private fun blank(type: Class<*>, into: Any?): Any {
+        @Suppress("UNCHECKED_CAST")
+        val codec = Struct.nestedCodec(type) as StructCodec<Any>
+        val input = ByteBufferDataInput(ByteBuffer.allocate(Struct.sizeof(codec.instantiate())), 0)
+        if (into == null || !codec.isMutable) return codec.decode(input)
+        codec.read(into, input)
+        return into
+    }
+
+    private fun equal(member: StructLayout.Member, a: Any, b: Any): Boolean {
+        val accessor = member.accessor
+        if (member.dimensions == 0) when (member.primitive) {
+            Struct.Primitive.BOOLEAN -> return accessor.getBoolean(a) == accessor.getBoolean(b)
+            Struct.Primitive.BYTE -> return accessor.getByte(a) == accessor.getByte(b)
+            Struct.Primitive.CHAR -> return accessor.getChar(a) == accessor.getChar(b)
+            Struct.Primitive.SHORT -> return accessor.getShort(a) == accessor.getShort(b)
+            Struct.Primitive.INT -> return accessor.getInt(a) == accessor.getInt(b)
+            Struct.Primitive.LONG -> return accessor.getLong(a) == accessor.getLong(b)
+            Struct.Primitive.FLOAT -> return java.lang.Float.floatToRawIntBits(accessor.getFloat(a)) ==
+                    java.lang.Float.floatToRawIntBits(accessor.getFloat(b))
+            Struct.Primitive.DOUBLE -> return java.lang.Double.doubleToRawLongBits(accessor.getDouble(a)) ==
+                    java.lang.Double.doubleToRawLongBits(accessor.getDouble(b))
+            else -> Unit
+        }
+        return equalValues(member, member.dimensions, accessor.get(a), accessor.get(b))
+    }
+
+    /**
+     * @param dimensions Remaining array dimensions
+     */
+    private fun equalValues(member: StructLayout.Member, dimensions: Int, a: Any?, b: Any?): Boolean {
+        if (a === b) return true
+        if (a != null && b == null && dimensions == 0 && member.primitive == null) {
+            // Unchanged if still holding what was sent for null
+            return equalValues(member, 0, a, blanks.getOrPut(member.elementType) { blank(member.elementType, null) })
+        }
+        if (a == null || b == null) return false
+        if (member.primitive != null) return Objects.deepEquals(a, b)
+        if (dimensions == 0) {
+            // Nested struct
+            for (nested in StructLayout.of(member.elementType).members) {
+                if (!equal(nested, a, b)) return false
+            }
+            return true
+        }
+        val x = a as Array<*>
+        val y = b as Array<*>
+        if (x.size != y.size) return false
+        for (i in x.indices) {
+            if (!equalValues(member, dimensions - 1, x[i], y[i])) return false
+        }
+        return true
+    }
+}
@@ -4,7 +4,7 @@ package com.timepath.io.struct
  * Struct field marker.
  * Nested Object fields must either be statically accessible
  * via the nullary constructor, or pre-instantiated.
- * Arrays must also be instantiated.
+ * Arrays must also be instantiated, unless they have a [length] or [lengthRef].
  *
  * @author TimePath
  */
@@ -12,7 +12,7 @@ package com.timepath.io.struct
 @Target(AnnotationTarget.FIELD)
 annotation public class StructField(public val index: Int = 0,
                                     /**
-                                     * @return read with reverse byte order?
+                                     * @return read with reverse byte order? Applies to primitives and primitive arrays
                                      */
                                     public val reverse: Boolean = false,
                                     /**
@@ -22,4 +22,33 @@ annotation public class StructField(public val index: Int = 0,
                                     /**
                                      * @return maximum length (mostly used for zstrings)
                                      */
-                                    public val limit: Int = 0, public val nullable: Boolean = false)
+                                    public val limit: Int = 0, public val nullable: Boolean = false,
+                                    /**
+                                     * @return element count of a one-dimensional array, making its size static.
+                                     * Such arrays are instantiated when null
+                                     */
+                                    public val length: Int = 0,
+                                    /**
+                                     * @return width in bits of an integral primitive, or each element of an array
+                                     * of them, when packed against a [com.timepath.io.BitBuffer]. 0 for natural width.
+                                     * Byte oriented codecs always use the natural width
+                                     */
+                                    public val bits: Int = 0,
+                                    /**
+                                     * @return share repeated values of a String field through a [StringTable]?
+                                     */
+                                    public val dedup: Boolean = false,
+                                    /**
+                                     * @return name of an earlier integral field holding the element count of this
+                                     * one-dimensional array, as in `u32 count; T items[count]`. Byte and short counts
+                                     * are unsigned. The array is instantiated to fit when read, and must match the
+                                     * count when written
+                                     */
+                                    public val lengthRef: String = "",
+                                    /**
+                                     * @return encode short, char, int and long values, or arrays of them, as
+                                     * ZigZag LEB128 varints, and strings as a varint byte length followed by UTF-8,
+                                     * truncated to any [limit]? Makes the size dynamic. Byte oriented codecs only,
+                                     * see also [StructVarint]
+                                     */
+                                    public val varint: Boolean = false)
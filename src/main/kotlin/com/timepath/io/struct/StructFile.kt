@@ -0,0 +1,181 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.ByteBufferDataOutput
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.ArrayList
+
+/**
+ * A file of back to back records of a fixed layout, memory mapped for random access by index.
+ * The file is mapped in segments of [segmentRecords] records, each mapped once until the next [flush], so lookups are
+ * a division and appends only touch the file system when a segment fills. Records are decoded straight from the mapping.
+ *
+ * ```
+ * StructFile(Entry::class.java, file, ByteOrder.LITTLE_ENDIAN).use {
+ *     it.append(entry)
+ *     val first = it[0]
+ * }
+ * ```
+ *
+ * Appending extends the file to a whole number of segments, [flush] and [close] trim it back to [size] records, so
+ * the number of records is always the length of the file divided by [recordSize] once flushed. Lookups do not extend
+ * the file. A trailing partial record in an existing file is ignored and will be overwritten by the next [append].
+ * Not safe for concurrent use.
+ *
+ * @param order Byte order of the data
+ * @param segmentRecords Records per mapping, 64 MiB worth by default
+ * @author TimePath
+ */
+public class StructFile<T : Any> @JvmOverloads constructor(public val type: Class<T>,
+                                                           public val file: File,
+                                                           public val order: ByteOrder = ByteOrder.BIG_ENDIAN,
+                                                           segmentRecords: Int = 0) : Closeable {
+
+    private val layout = StructLayout.of(type)
+    private val codec = Struct.codec(type)
+
+    /**
+     * Size of a single record in bytes
+     */
+    public val recordSize: Int = layout.size
+
+    init {
+        if (!layout.isFixed) throw IllegalArgumentException("${type.name} does not have a fixed size")
+        if (recordSize == 0) throw IllegalArgumentException("${type.name} is empty")
+    }
+
+    public val segmentRecords: Int = when {
+        segmentRecords > 0 -> Math.min(segmentRecords, Int.MAX_VALUE / recordSize)
+        else -> Math.max(1, (64 * 1024 * 1024) / recordSize)
+    }
+
+    private val segmentBytes = this.segmentRecords.toLong() * recordSize
+
+    private inner class Segment(val buffer: MappedByteBuffer) {
+        init {
+            buffer.order(order)
+        }
+
+        val input = ByteBufferDataInput(buffer, 0)
+        val output = ByteBufferDataOutput(buffer, 0)
+    }
+
+    private val raf = RandomAccessFile(file, "rw")
+    private val channel = raf.channel
+    private val segments = ArrayList<Segment>()
+
+    private var size = file.length() / recordSize
+
+    /**
+     * @return the number of records
+     */
+    public fun size(): Long = size
+
+    /**
+     * Maps segments until [index] is covered. A segment is mapped up to the end of the file while that covers [index],
+     * and in full otherwise, extending the file
+     */
+    private fun segment(index: Long): Segment {
+        val n = (index / segmentRecords).toInt()
+        val end = offset(index) + recordSize
+        if (n < segments.size && segments[n].buffer.capacity() >= end) return segments[n]
+        val length = channel.size()
+        for (i in segments.size..n) {
+            val available = length - i * segmentBytes
+            val needed = if (i == n) end.toLong() else segmentBytes
+            segments.add(map(i, if (available >= needed) Math.min(available, segmentBytes) else segmentBytes))
+        }
+        // Mapped up to the end of the file, now written past it
+        if (segments[n].buffer.capacity() < end) segments[n] = map(n, segmentBytes)
+        return segments[n]
+    }
+
+    private fun map(n: Int, bytes: Long) = Segment(channel.map(FileChannel.MapMode.READ_WRITE, n * segmentBytes, bytes))
+
+    private fun offset(index: Long) = (index % segmentRecords).toInt() * recordSize
+
+    private fun check(index: Long) {
+        if (index < 0 || index >= size) throw IndexOutOfBoundsException("$index")
+    }
+
+    /**
+     * Decodes a record into an existing instance
+     */
+    @Throws(IOException::class)
+    public fun get(index: Long, out: T): T {
+        check(index)
+        val segment = segment(index)
+        segment.input.position(offset(index))
+        codec.read(out, segment.input)
+        return out
+    }
+
+    /**
+     * Decodes a record into a new instance, also for immutable types
+     */
+    @Throws(IOException::class)
+    public operator fun get(index: Long): T {
+        check(index)
+        val segment = segment(index)
+        segment.input.position(offset(index))
+        return codec.decode(segment.input)
+    }
+
+    /**
+     * Encodes over an existing record
+     */
+    @Throws(IOException::class)
+    public operator fun set(index: Long, value: T) {
+        check(index)
+        write(index, value)
+    }
+
+    /**
+     * Encodes a record after the last, mapping another segment if the current one is full
+     *
+     * @return the index of the new record
+     */
+    @Throws(IOException::class)
+    public fun append(value: T): Long {
+        write(size, value)
+        return size++
+    }
+
+    private fun write(index: Long, value: T) {
+        val segment = segment(index)
+        segment.output.position(offset(index))
+        codec.write(value, segment.output)
+    }
+
+    /**
+     * Writes modified records back to the storage device, then trims the file to the records it holds.
+     * Segments are mapped again on the next access
+     */
+    @Throws(IOException::class)
+    public fun flush() {
+        for (segment in segments) segment.buffer.force()
+        segments.clear()
+        channel.truncate(size * recordSize)
+        channel.force(true)
+    }
+
+    /**
+     * Flushes, then closes the file.
+     * The mappings remain valid until garbage collected, on some platforms this prevents trimming
+     */
+    override fun close() {
+        try {
+            flush()
+        } finally {
+            raf.close()
+        }
+    }
+
+    override fun toString() = "StructFile(${type.name}, $file, $size)"
+}
@@ -0,0 +1,314 @@
+package com.timepath.io.struct
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.ArrayList
+
+/**
+ * Persistent secondary index over an integral key field of a file of fixed size records, such as one written by
+ * [StructFile]. Keys are read in place from a read only mapping of the records, no other fields are decoded.
+ *
+ * The index file holds the number of records indexed, then (key, record offset) pairs sorted by key, all as
+ * big endian longs. It is memory mapped, so lookups binary search it touching O(log n) pages.
+ *
+ * ```
+ * StructIndex(Entry::class.java, "id", records, File("$records.id"), ByteOrder.LITTLE_ENDIAN).use {
+ *     for (offset in it.range(100, 200)) Struct.unpack(entry, buf, offset.toInt())
+ * }
+ * ```
+ *
+ * [update] indexes records appended since, which is cheap when their keys do not precede the last indexed key.
+ * Not safe for concurrent use.
+ *
+ * @param field The key, nested fields are separated by '.', must be a single boolean, byte, char, short, int or long
+ * @param order Byte order of the records
+ * @author TimePath
+ */
+public class StructIndex<T : Any> @JvmOverloads constructor(public val type: Class<T>,
+                                                            public val field: String,
+                                                            public val records: File,
+                                                            public val index: File,
+                                                            public val order: ByteOrder = ByteOrder.BIG_ENDIAN)
+: Closeable {
+
+    private val layout = StructLayout.of(type)
+
+    /**
+     * Size of a single record in bytes
+     */
+    public val recordSize: Int = layout.size
+
+    private val key: StructLayout.Member
+    /** Offset of the key within a record */
+    private val keyOffset: Int
+
+    init {
+        if (!layout.isFixed) throw IllegalArgumentException("${type.name} does not have a fixed size")
+        var layout = layout
+        var offset = 0
+        val names = field.split('.')
+        for (name in names.subList(0, names.size - 1)) {
+            val member = layout.member(name)
+            offset += layout.offsetOf(member)
+            layout = StructLayout.of(member.elementType)
+        }
+        key = layout.member(names.last())
+        keyOffset = offset + layout.offsetOf(key)
+        when (key.primitive) {
+            Struct.Primitive.BOOLEAN, Struct.Primitive.BYTE, Struct.Primitive.CHAR,
+            Struct.Primitive.SHORT, Struct.Primitive.INT, Struct.Primitive.LONG ->
+                if (key.dimensions != 0) throw IllegalArgumentException("$key is not a single value")
+            else -> throw IllegalArgumentException("$key is not integral")
+        }
+    }
+
+    private companion object {
+        const val HEADER = 8
+        const val ENTRY = 16
+        /** Entries per mapping, 1 GiB worth */
+        const val SEGMENT_SHIFT = 26
+        const val SEGMENT = 1L shl SEGMENT_SHIFT
+        /** Record bytes mapped at a time while scanning */
+        const val WINDOW = 64L * 1024 * 1024
+    }
+
+    private var raf = RandomAccessFile(index, "rw")
+    private var segments = ArrayList<MappedByteBuffer>()
+
+    /**
+     * Number of entries, one per record indexed
+     */
+    public var size: Long = 0
+        private set
+
+    init {
+        if (raf.length() < HEADER) {
+            raf.setLength(0)
+            raf.writeLong(0)
+        }
+        update()
+    }
+
+    private fun map() {
+        size = raf.readLongAt(0)
+        segments.clear()
+        val channel = raf.channel
+        var start = 0L
+        while (start < size) {
+            val n = Math.min(SEGMENT, size - start)
+            segments.add(channel.map(FileChannel.MapMode.READ_ONLY, HEADER + start * ENTRY, n * ENTRY))
+            start += n
+        }
+    }
+
+    private fun RandomAccessFile.readLongAt(pos: Long): Long {
+        seek(pos)
+        return readLong()
+    }
+
+    private fun keyAt(i: Long) = segments[(i ushr SEGMENT_SHIFT).toInt()].getLong(((i and (SEGMENT - 1)) * ENTRY).toInt())
+
+    private fun offsetAt(i: Long) = segments[(i ushr SEGMENT_SHIFT).toInt()].getLong(((i and (SEGMENT - 1)) * ENTRY + 8).toInt())
+
+    /**
+     * Indexes all whole records in the file, up to the last [StructFile.flush] if still open
+     */
+    @Throws(IOException::class)
+    public fun update(): Unit = update(records.length() / recordSize)
+
+    /**
+     * Indexes records appended since the last update.
+     * Records are only ever added, rewritten records are not reindexed
+     *
+     * @param count Total records in the file, for files which are still open and may have trailing space
+     */
+    @Throws(IOException::class)
+    public fun update(count: Long) {
+        map()
+        if (count <= size) return
+        val n = count - size
+        if (n > Int.MAX_VALUE) throw IllegalArgumentException("Too many records at once: $n")
+        val keys = LongArray(n.toInt())
+        val offsets = LongArray(n.toInt())
+        scan(size, keys, offsets)
+        sort(keys, offsets, 0, keys.size, LongArray(keys.size), LongArray(keys.size))
+        if (size == 0L || keys[0] >= keyAt(size - 1)) {
+            append(keys, offsets)
+        } else {
+            merge(keys, offsets)
+        }
+        map()
+    }
+
+    /**
+     * Reads the keys of records from [first] onwards
+     */
+    private fun scan(first: Long, keys: LongArray, offsets: LongArray) {
+        RandomAccessFile(records, "r").use {
+            val channel = it.channel
+            val perWindow = Math.max(1L, WINDOW / recordSize)
+            var i = 0
+            while (i < keys.size) {
+                val n = Math.min(perWindow, (keys.size - i).toLong()).toInt()
+                val base = (first + i) * recordSize
+                val buf = channel.map(FileChannel.MapMode.READ_ONLY, base, n.toLong() * recordSize).order(order)
+                for (j in 0..n - 1) {
+                    keys[i + j] = read(buf, j * recordSize + keyOffset)
+                    offsets[i + j] = base + j.toLong() * recordSize
+                }
+                i += n
+            }
+        }
+    }
+
+    private fun read(buf: ByteBuffer, at: Int): Long {
+        val reverse = key.meta.reverse
+        return when (key.primitive) {
+            Struct.Primitive.BOOLEAN, Struct.Primitive.BYTE -> buf.get(at).toLong()
+            Struct.Primitive.CHAR -> buf.getChar(at).let { if (reverse) Character.reverseBytes(it) else it }.toLong()
+            Struct.Primitive.SHORT -> buf.getShort(at).let { if (reverse) java.lang.Short.reverseBytes(it) else it }.toLong()
+            Struct.Primitive.INT -> buf.getInt(at).let { if (reverse) Integer.reverseBytes(it) else it }.toLong()
+            else -> buf.getLong(at).let { if (reverse) java.lang.Long.reverseBytes(it) else it }
+        }
+    }
+
+    /**
+     * Sorts by key then offset, stable merge sort over parallel arrays
+     */
+    private fun sort(keys: LongArray, offsets: LongArray, from: Int, to: Int, keyTmp: LongArray, offsetTmp: LongArray) {
+        if (to - from < 2) return
+        val mid = (from + to) ushr 1
+        sort(keys, offsets, from, mid, keyTmp, offsetTmp)
+        sort(keys, offsets, mid, to, keyTmp, offsetTmp)
+        if (keys[mid - 1] <= keys[mid]) return
+        System.arraycopy(keys, from, keyTmp, from, to - from)
+        System.arraycopy(offsets, from, offsetTmp, from, to - from)
+        var a = from
+        var b = mid
+        for (i in from..to - 1) {
+            if (b >= to || (a < mid && keyTmp[a] <= keyTmp[b])) {
+                keys[i] = keyTmp[a]
+                offsets[i] = offsetTmp[a++]
+            } else {
+                keys[i] = keyTmp[b]
+                offsets[i] = offsetTmp[b++]
+            }
+        }
+    }
+
+    private fun append(keys: LongArray, offsets: LongArray) {
+        val channel = raf.channel
+        write(channel, HEADER + size * ENTRY, keys, offsets, 0, keys.size)
+        channel.force(false)
+        // Header last, so a partial write is not picked up
+        raf.seek(0)
+        raf.writeLong(size + keys.size)
+    }
+
+    private fun write(channel: FileChannel, at: Long, keys: LongArray, offsets: LongArray, from: Int, to: Int) {
+        val buf = ByteBuffer.allocate(64 * 1024)
+        var pos = at
+        var i = from
+        while (i < to) {
+            buf.clear()
+            while (i < to && buf.remaining() >= ENTRY) {
+                buf.putLong(keys[i]).putLong(offsets[i])
+                i++
+            }
+            buf.flip()
+            while (buf.hasRemaining()) pos += channel.write(buf, pos)
+        }
+    }
+
+    /**
+     * Rewrites the index with new entries merged in, replacing the old file once complete
+     */
+    private fun merge(keys: LongArray, offsets: LongArray) {
+        val tmp = File.createTempFile(index.name, ".tmp", index.absoluteFile.parentFile)
+        try {
+            RandomAccessFile(tmp, "rw").use {
+                it.writeLong(size + keys.size)
+                val channel = it.channel
+                val buf = ByteBuffer.allocate(64 * 1024)
+                var pos = HEADER.toLong()
+                var a = 0L
+                var b = 0
+                while (a < size || b < keys.size) {
+                    buf.clear()
+                    while ((a < size || b < keys.size) && buf.remaining() >= ENTRY) {
+                        if (b >= keys.size || (a < size && keyAt(a) <= keys[b])) {
+                            buf.putLong(keyAt(a)).putLong(offsetAt(a))
+                            a++
+                        } else {
+                            buf.putLong(keys[b]).putLong(offsets[b])
+                            b++
+                        }
+                    }
+                    buf.flip()
+                    while (buf.hasRemaining()) pos += channel.write(buf, pos)
+                }
+                channel.force(false)
+            }
+            segments.clear()
+            raf.close()
+            Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            tmp.delete()
+            if (!raf.channel.isOpen) raf = RandomAccessFile(index, "rw")
+        }
+    }
+
+    /**
+     * @return the position of the first entry with a key not less than [key]
+     */
+    private fun lowerBound(key: Long): Long {
+        var lo = 0L
+        var hi = size
+        while (lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if (keyAt(mid) < key) lo = mid + 1 else hi = mid
+        }
+        return lo
+    }
+
+    /**
+     * @return the offset of the first record with [key], or -1 if there is none
+     */
+    public fun first(key: Long): Long {
+        val i = lowerBound(key)
+        return if (i < size && keyAt(i) == key) offsetAt(i) else -1
+    }
+
+    /**
+     * @return the offsets of all records with [key], in file order
+     */
+    public operator fun get(key: Long): LongArray = range(key, key)
+
+    /**
+     * @param from Lowest key, inclusive
+     * @param to Highest key, inclusive
+     * @return the offsets of all records with keys in range, ordered by key then offset
+     */
+    public fun range(from: Long, to: Long): LongArray {
+        if (from > to) return LongArray(0)
+        val start = lowerBound(from)
+        val end = if (to == Long.MAX_VALUE) size else lowerBound(to + 1)
+        if (end - start > Int.MAX_VALUE) throw IllegalStateException("Too many results: ${end - start}")
+        return LongArray((end - start).toInt()) { offsetAt(start + it) }
+    }
+
+    override fun close() {
+        segments.clear()
+        raf.close()
+    }
+
+    override fun toString() = "StructIndex(${type.name}.$field, $index, $size)"
+}
@@ -0,0 +1,244 @@
+package com.timepath.io.struct
+
+import java.lang.reflect.Constructor
+import java.lang.reflect.Field
+import java.lang.reflect.Modifier
+import java.util.*
+
+/**
+ * Immutable description of a struct class: its [StructField] members in wire order.
+ * Computed once per class, see [StructLayout.of].
+ *
+ * @author TimePath
+ */
+public class StructLayout private constructor(public val type: Class<*>) {
+
+    public companion object {
+
+        private val layouts = object : ClassValue<StructLayout>() {
+            override fun computeValue(type: Class<*>) = StructLayout(type)
+        }
+
+        /**
+         * @param type The struct class
+         * @return the layout of the given class, computed on first use
+         */
+        public @JvmStatic fun of(type: Class<*>): StructLayout = layouts.get(type)
+    }
+
+    /**
+     * A single [StructField] member
+     */
+    public class Member internal constructor(public val field: Field, public val meta: StructField) {
+
+        internal val accessor = FieldAccessor(field)
+
+        /**
+         * Number of array dimensions, 0 if not an array
+         */
+        public val dimensions: Int = field.type.name.lastIndexOf('[') + 1
+
+        /**
+         * The field type, or the innermost component type of an array
+         */
+        public val elementType: Class<*> = run {
+            var elemType = field.type
+            repeat(dimensions) { elemType = elemType.componentType }
+            elemType
+        }
+
+        /**
+         * Primitive kind of [elementType], or null if it is a nested struct
+         */
+        internal val primitive: Struct.Primitive? = Struct.Primitive[elementType]
+
+        /**
+         * Encoded as varints, see [StructField.varint]
+         */
+        public val varint: Boolean = (meta.varint || field.declaringClass.isAnnotationPresent(StructVarint::class.java))
+                && when (primitive) {
+            Struct.Primitive.SHORT, Struct.Primitive.CHAR, Struct.Primitive.INT, Struct.Primitive.LONG,
+            Struct.Primitive.STRING -> true
+            else -> false
+        }
+
+        init {
+            if (meta.length > 0 && dimensions != 1) {
+                throw IllegalArgumentException("$field: length is only supported on one-dimensional arrays")
+            }
+            if (meta.lengthRef.isNotEmpty() && (dimensions != 1 || meta.length > 0)) {
+                throw IllegalArgumentException("$field: lengthRef is only supported on one-dimensional arrays without a length")
+            }
+        }
+
+        /**
+         * Earlier member holding the element count of this array, see [StructField.lengthRef]
+         */
+        public var count: Member? = null
+            internal set
+
+        /**
+         * @return the element count held by [count], byte and short counts being unsigned
+         */
+        internal fun countOf(instance: Any): Long {
+            val accessor = count!!.accessor
+            return when (count!!.primitive) {
+                Struct.Primitive.BYTE -> accessor.getByte(instance).toLong() and 0xFF
+                Struct.Primitive.SHORT -> accessor.getShort(instance).toLong() and 0xFFFF
+                Struct.Primitive.CHAR -> accessor.getChar(instance).toLong()
+                Struct.Primitive.INT -> accessor.getInt(instance).toLong()
+                else -> accessor.getLong(instance)
+            }
+        }
+
+        /**
+         * Static size in bytes of a single element, or a value less than 0 to indicate dynamic size
+         */
+        private val elementSize: Int
+            get() {
+                val primitive = primitive
+                return when {
+                    varint -> -1
+                    primitive == null -> StructLayout.of(elementType).size
+                    primitive.size >= 0 -> primitive.size
+                    meta.limit > 0 -> meta.limit // Limit string
+                    else -> -1 // Dynamic length String
+                }
+            }
+
+        /**
+         * Static size in bytes, excluding [StructField.skip], or a value less than 0 to indicate dynamic size
+         */
+        public val size: Int by lazy {
+            when {
+                dimensions == 0 -> elementSize.let {
+                    // Nested structs are cut short at their limit, as in Struct.sizeof
+                    if (primitive == null && meta.limit > 0 && it >= 0) Math.min(it, meta.limit) else it
+                }
+                // Checked before the element layout, which may be this one
+                meta.length <= 0 -> -1 // Arrays are sized by their instance
+                else -> elementSize.let { if (it >= 0) meta.length * it else -1 }
+            }
+        }
+
+        override fun toString() = field.toString()
+    }
+
+    /**
+     * Members sorted by [StructField.index], ties broken by declaration order
+     */
+    public val members: List<Member> = run {
+        val members = ArrayList<Member>()
+        for (field in type.declaredFields) {
+            val meta = field.getAnnotation(StructField::class.java) ?: continue
+            members.add(Member(field, meta))
+        }
+        // Stable sort
+        Collections.sort(members, object : Comparator<Member> {
+            override fun compare(o1: Member, o2: Member) = o1.meta.index - o2.meta.index
+        })
+        for ((i, member) in members.withIndex()) {
+            val ref = member.meta.lengthRef
+            if (ref.isEmpty()) continue
+            val count = members.subList(0, i).firstOrNull { it.field.name == ref }
+                    ?: throw IllegalArgumentException("${member.field}: lengthRef $ref must name an earlier member")
+            val integral = when (count.primitive) {
+                Struct.Primitive.BYTE, Struct.Primitive.SHORT, Struct.Primitive.CHAR,
+                Struct.Primitive.INT, Struct.Primitive.LONG -> count.dimensions == 0
+                else -> false
+            }
+            if (!integral) throw IllegalArgumentException("${member.field}: lengthRef $ref must be a single integral value")
+            member.count = count
+        }
+        Collections.unmodifiableList(members)
+    }
+
+    /**
+     * The constructor taking every member, for immutable types, or null to use the nullary constructor.
+     * See [StructConstructor]
+     */
+    public val constructor: Constructor<*>? = run {
+        val types = members.map { it.field.type }
+        val ctors = type.declaredConstructors
+        val marked = ctors.filter { it.isAnnotationPresent(StructConstructor::class.java) }
+        if (marked.size > 1) throw IllegalArgumentException("${type.name}: more than one @StructConstructor")
+        marked.firstOrNull()?.let {
+            if (it.parameterTypes.asList() != types) {
+                throw IllegalArgumentException("$it: must take $types")
+            }
+            return@run it
+        }
+        val nullary = ctors.any { it.parameterTypes.isEmpty() }
+        if (nullary && members.none { Modifier.isFinal(it.field.modifiers) }) return@run null
+        ctors.firstOrNull { it.parameterTypes.asList() == types }
+    }
+
+    /**
+     * Static offsets of each member, following [members]. Only valid up to the first dynamically sized member
+     */
+    private val offsets: IntArray by lazy {
+        val offsets = IntArray(members.size)
+        var offset = 0
+        for ((i, member) in members.withIndex()) {
+            offset += member.meta.skip
+            offsets[i] = offset
+            if (member.size < 0) {
+                for (j in i + 1..offsets.size - 1) offsets[j] = -1
+                break
+            }
+            offset += member.size
+        }
+        offsets
+    }
+
+    /**
+     * True if every instance has the same [size], so records can be located by offset arithmetic
+     */
+    public val isFixed: Boolean get() = size >= 0
+
+    /**
+     * Static size in bytes, or a value less than 0 to indicate dynamic size
+     */
+    public val size: Int by lazy {
+        var size = 0
+        for (member in members) {
+            if (member.size < 0) return@lazy -1
+            size += member.meta.skip + member.size
+        }
+        size
+    }
+
+    private val indices: Map<String, Int> = run {
+        val indices = HashMap<String, Int>()
+        for ((i, member) in members.withIndex()) indices[member.field.name] = i
+        indices
+    }
+
+    /**
+     * @return the static offset of a member, or a value less than 0 if it follows a dynamically sized member
+     */
+    public fun offsetOf(member: Member): Int = offsets[members.indexOf(member)]
+
+    /**
+     * @param index Position in [members]
+     * @return the static offset of a member, or a value less than 0 if it follows a dynamically sized member
+     */
+    public fun offsetOf(index: Int): Int = offsets[index]
+
+    /**
+     * @param name The field name
+     * @return the position of the named field in [members]
+     * @throws NoSuchElementException if there is no such member
+     */
+    public fun indexOf(name: String): Int = indices[name]
+            ?: throw NoSuchElementException("No member $name in ${type.name}")
+
+    /**
+     * @param name The field name
+     * @return the member for the named field
+     * @throws NoSuchElementException if there is no such member
+     */
+    public fun member(name: String): Member = members[indexOf(name)]
+
+    override fun toString() = "StructLayout(${type.name}, $members)"
+}
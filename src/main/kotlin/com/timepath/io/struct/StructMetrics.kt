@@ -0,0 +1,209 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.ByteBufferDataOutput
+import com.timepath.io.OrderedInputStream
+import com.timepath.io.OrderedOutputStream
+import java.beans.ConstructorProperties
+import java.io.DataInput
+import java.io.DataOutput
+import java.lang.management.ManagementFactory
+import java.util.ArrayList
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+import javax.management.ObjectName
+
+/**
+ * JMX view of [StructMetrics]
+ *
+ * @author TimePath
+ */
+public interface StructMetricsMXBean {
+
+    public var enabled: Boolean
+
+    /**
+     * A snapshot of every layout seen while enabled
+     */
+    public val layouts: List<StructMetrics.LayoutMetrics>
+
+    public fun reset()
+}
+
+/**
+ * Opt-in per struct class counters, for finding the layouts which dominate serialization time.
+ *
+ * While [enabled], [Struct.codec] hands out codecs which count and time each record. Codecs obtained before enabling
+ * are not metered, so long lived holders such as [StructReader] should be created after. Metered codecs check the
+ * flag per record, so disabling takes effect immediately. When disabled the cost is a volatile read per
+ * [Struct.codec] call.
+ * Only top level records are counted, nested structs are part of their parent's figures: codecs resolve their members
+ * through [Struct.nestedCodec], which is never metered.
+ *
+ * Enable at startup with `-Dcom.timepath.io.struct.metrics=true`, and see [register] to expose them through JMX.
+ *
+ * @author TimePath
+ */
+public object StructMetrics : StructMetricsMXBean {
+
+    public const val NAME: String = "com.timepath.io.struct:type=StructMetrics"
+
+    @Volatile
+    override public var enabled: Boolean = java.lang.Boolean.getBoolean("com.timepath.io.struct.metrics")
+
+    /**
+     * Live counters of a single struct class
+     */
+    public class Counters internal constructor(public val type: Class<*>) {
+        internal val packed = LongAdder()
+        internal val unpacked = LongAdder()
+        internal val bytesPacked = LongAdder()
+        internal val bytesUnpacked = LongAdder()
+        internal val packNanos = LongAdder()
+        internal val unpackNanos = LongAdder()
+        internal val instantiations = LongAdder()
+
+        public fun snapshot(): LayoutMetrics = LayoutMetrics(type.name,
+                packed.sum(), unpacked.sum(),
+                bytesPacked.sum(), bytesUnpacked.sum(),
+                packNanos.sum(), unpackNanos.sum(),
+                instantiations.sum())
+
+        internal fun reset() {
+            for (adder in arrayOf(packed, unpacked, bytesPacked, bytesUnpacked, packNanos, unpackNanos, instantiations)) {
+                adder.reset()
+            }
+        }
+    }
+
+    /**
+     * Point in time copy of [Counters]. Bytes are only counted where known: fixed layouts, and dynamic ones read
+     * from or written to the stream and buffer types of this library
+     */
+    public class LayoutMetrics @ConstructorProperties("type", "packed", "unpacked", "bytesPacked", "bytesUnpacked",
+            "packNanos", "unpackNanos", "instantiations") constructor(
+            public val type: String,
+            public val packed: Long,
+            public val unpacked: Long,
+            public val bytesPacked: Long,
+            public val bytesUnpacked: Long,
+            public val packNanos: Long,
+            public val unpackNanos: Long,
+            /** Instances created by [StructCodec.instantiate] or [StructCodec.decode] */
+            public val instantiations: Long) {
+
+        override fun toString() = "$type: $packed packed ($bytesPacked B, $packNanos ns), " +
+                "$unpacked unpacked ($bytesUnpacked B, $unpackNanos ns), $instantiations instantiated"
+    }
+
+    private val counters = ConcurrentHashMap<Class<*>, Counters>()
+
+    /**
+     * @return the live counters of a struct class
+     */
+    public @JvmStatic fun counters(type: Class<*>): Counters = counters.computeIfAbsent(type) { Counters(it) }
+
+    /**
+     * @return a snapshot of one struct class
+     */
+    public @JvmStatic fun of(type: Class<*>): LayoutMetrics = counters(type).snapshot()
+
+    override val layouts: List<LayoutMetrics>
+        get() {
+            val list = ArrayList<LayoutMetrics>()
+            for (c in counters.values) list.add(c.snapshot())
+            list.sortByDescending { it.packNanos + it.unpackNanos }
+            return list
+        }
+
+    /**
+     * Zeroes all counters
+     */
+    override fun reset() {
+        for (c in counters.values) c.reset()
+    }
+
+    /**
+     * Registers with the platform MBean server as [NAME], if not already
+     */
+    public @JvmStatic fun register() {
+        val server = ManagementFactory.getPlatformMBeanServer()
+        val name = ObjectName(NAME)
+        synchronized(this) {
+            if (!server.isRegistered(name)) server.registerMBean(this, name)
+        }
+    }
+}
+
+/**
+ * Counts and times each record through another codec, see [StructMetrics].
+ * Records are only counted once read or written in full, an attempt cut short by the end of the input, as retried by
+ * [StructReader] and [AsyncStructReader] when a record spans their buffer, counts towards nothing
+ */
+internal class MeteredCodec<T : Any>(private val codec: StructCodec<T>, type: Class<T>) : StructCodec<T>() {
+
+    private val counters = StructMetrics.counters(type)
+    private val size = StructLayout.of(type).size
+
+    override val isMutable: Boolean get() = codec.isMutable
+
+    override fun instantiate(): T {
+        if (StructMetrics.enabled) counters.instantiations.increment()
+        return codec.instantiate()
+    }
+
+    override fun read(instance: T, input: DataInput) {
+        if (!StructMetrics.enabled) return codec.read(instance, input)
+        val start = position(input)
+        val t = System.nanoTime()
+        codec.read(instance, input)
+        unpacked(System.nanoTime() - t, start, position(input))
+    }
+
+    override fun decode(input: DataInput): T {
+        if (!StructMetrics.enabled) return codec.decode(input)
+        val start = position(input)
+        val t = System.nanoTime()
+        val instance = codec.decode(input)
+        unpacked(System.nanoTime() - t, start, position(input))
+        counters.instantiations.increment()
+        return instance
+    }
+
+    override fun write(instance: T, output: DataOutput) {
+        if (!StructMetrics.enabled) return codec.write(instance, output)
+        val start = position(output)
+        val t = System.nanoTime()
+        codec.write(instance, output)
+        counters.packNanos.add(System.nanoTime() - t)
+        counters.packed.increment()
+        bytes(counters.bytesPacked, start, position(output))
+    }
+
+    private fun unpacked(nanos: Long, start: Long, end: Long) {
+        counters.unpackNanos.add(nanos)
+        counters.unpacked.increment()
+        bytes(counters.bytesUnpacked, start, end)
+    }
+
+    private fun bytes(adder: LongAdder, start: Long, end: Long) = when {
+        size >= 0 -> adder.add(size.toLong())
+        start >= 0 -> adder.add(end - start)
+        else -> Unit
+    }
+
+    /**
+     * @return the position of a known input type, or -1
+     */
+    private fun position(input: DataInput): Long = when (input) {
+        is ByteBufferDataInput -> input.position().toLong()
+        is OrderedInputStream -> input.position().toLong()
+        else -> -1
+    }
+
+    private fun position(output: DataOutput): Long = when (output) {
+        is ByteBufferDataOutput -> output.position().toLong()
+        is OrderedOutputStream -> output.position().toLong()
+        else -> -1
+    }
+}
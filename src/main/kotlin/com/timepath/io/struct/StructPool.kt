@@ -0,0 +1,42 @@
+package com.timepath.io.struct
+
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Bounded pool of struct instances, for decode loops which would otherwise allocate a record per iteration.
+ * Unpacking into a previously used instance overwrites its fields in place, reusing the nested structs and object
+ * array elements it already holds, so a warmed up pool allocates nothing but strings.
+ *
+ * Ownership: an instance returned by [acquire] belongs to the caller until passed to [release]. After that it may
+ * be handed out and overwritten at any time, so no references to it or its nested objects may be kept.
+ * Safe for use from multiple threads.
+ *
+ * @param capacity Maximum number of idle instances kept, any more released are left to the garbage collector
+ * @author TimePath
+ */
+public class StructPool<T : Any>(public val type: Class<T>, capacity: Int = 16) {
+
+    private val codec = Struct.codec(type)
+    private val idle = ArrayBlockingQueue<T>(capacity)
+
+    init {
+        if (!codec.isMutable) throw IllegalArgumentException("${type.name} is immutable, instances cannot be reused")
+    }
+
+    /**
+     * @return an idle instance with stale contents, or a new one if there are none
+     */
+    public fun acquire(): T = idle.poll() ?: codec.instantiate()
+
+    /**
+     * Returns an instance to the pool, the caller must not use it again
+     */
+    public fun release(instance: T) {
+        idle.offer(instance)
+    }
+
+    /**
+     * @return the number of idle instances
+     */
+    public fun size(): Int = idle.size
+}
@@ -0,0 +1,165 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import com.timepath.io.OrderedInputStream
+import java.io.Closeable
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.io.UncheckedIOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.SelectableChannel
+import java.util.NoSuchElementException
+import java.util.Spliterator
+import java.util.Spliterators
+import java.util.stream.Stream
+import java.util.stream.StreamSupport
+
+/**
+ * Reads back to back records until the end of a channel.
+ * Data is read ahead in chunks of at least [chunkSize] bytes, growing only to fit a single oversized record,
+ * so files of any length are processed in bounded memory. The end is detected by the channel reporting it,
+ * a record cut short by the end is an error. The channel must be blocking.
+ *
+ * ```
+ * StructReader(Entry::class.java, FileInputStream(file).channel).use {
+ *     for (entry in it) ...
+ * }
+ * ```
+ *
+ * Each record is a new instance unless a [StructPool] is given, see [recycle], or the caller supplies one to
+ * [readInto].
+ * I/O errors are rethrown from [hasNext] and [next] as [UncheckedIOException].
+ *
+ * @author TimePath
+ */
+public class StructReader<T : Any> @JvmOverloads constructor(public val type: Class<T>,
+                                                             private val channel: ReadableByteChannel,
+                                                             order: ByteOrder = ByteOrder.BIG_ENDIAN,
+                                                             chunkSize: Int = 64 * 1024) : Iterator<T>, Closeable {
+
+    /**
+     * Reads in the stream's current byte order
+     */
+    public constructor(type: Class<T>, input: OrderedInputStream) : this(type, Channels.newChannel(input), input.order())
+
+    @JvmOverloads
+    public constructor(type: Class<T>, input: InputStream, order: ByteOrder = ByteOrder.BIG_ENDIAN)
+    : this(type, Channels.newChannel(input), order)
+
+    init {
+        val layout = StructLayout.of(type)
+        if (layout.isFixed && layout.size == 0) throw IllegalArgumentException("${type.name} is empty")
+        if (channel is SelectableChannel && !channel.isBlocking) {
+            throw IllegalArgumentException("$channel is non-blocking")
+        }
+    }
+
+    private val codec = Struct.codec(type)
+    private var buffer = ByteBuffer.allocate(chunkSize).order(order).apply { limit(0) }
+    private var input = ByteBufferDataInput(buffer, 0)
+    private var eof = false
+    private var next: T? = null
+    private var pool: StructPool<T>? = null
+
+    /**
+     * Takes records from a pool rather than allocating them.
+     * Each record returned by [next] belongs to the caller until released back to the pool
+     *
+     * @return this
+     */
+    public fun recycle(pool: StructPool<T>): StructReader<T> {
+        this.pool = pool
+        return this
+    }
+
+    /**
+     * Moves unread data to the front of the buffer, growing it if already full, and reads more after it
+     *
+     * @return false if nothing more could be read
+     */
+    private fun fill(): Boolean {
+        if (eof) return false
+        buffer.position(input.position())
+        if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            // A single record larger than the buffer
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).order(buffer.order()).put(buffer)
+        } else {
+            buffer.compact()
+        }
+        val n = channel.read(buffer)
+        // Blocking channels always read something, unless at the end
+        if (n == 0) throw IOException("No progress reading from $channel")
+        if (n < 0) eof = true
+        buffer.flip()
+        input = ByteBufferDataInput(buffer, 0)
+        return n > 0
+    }
+
+    /**
+     * @param into Instance to overwrite, or null to decode a new one
+     * @return the record, or null if there are no more
+     */
+    private fun read(into: T?): T? {
+        while (true) {
+            val start = input.position()
+            if (input.remaining() == 0 && !fill()) return null
+            try {
+                if (into == null) return codec.decode(input)
+                codec.read(into, input)
+                return into
+            } catch (e: EOFException) {
+                // Record spans the end of the buffer
+                input.position(start)
+                if (!fill()) throw EOFException("Truncated ${type.name} record")
+            }
+        }
+    }
+
+    /**
+     * Decodes the next record over an existing instance, overwriting its fields in place.
+     * Not to be mixed with iteration
+     *
+     * @return false if there are no more records, leaving the instance untouched
+     */
+    @Throws(IOException::class)
+    public fun readInto(instance: T): Boolean = read(instance) != null
+
+    override fun hasNext(): Boolean {
+        if (next != null) return true
+        if (eof && input.remaining() == 0) return false
+        val pooled = pool?.acquire()
+        try {
+            next = read(pooled)
+        } catch (e: IOException) {
+            throw UncheckedIOException(e)
+        } finally {
+            if (next == null && pooled != null) pool?.release(pooled)
+        }
+        return next != null
+    }
+
+    override fun next(): T {
+        if (!hasNext()) throw NoSuchElementException()
+        val ret = next!!
+        next = null
+        return ret
+    }
+
+    /**
+     * @return the remaining records, may only be iterated once
+     */
+    public fun asSequence(): Sequence<T> = (this as Iterator<T>).asSequence()
+
+    /**
+     * @return the remaining records, closing this when the stream is closed
+     */
+    public fun stream(): Stream<T> = StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED or Spliterator.NONNULL), false)
+            .onClose { close() }
+
+    override fun close() = channel.close()
+}
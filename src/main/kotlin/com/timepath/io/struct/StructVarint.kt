@@ -0,0 +1,10 @@
+package com.timepath.io.struct
+
+/**
+ * Encodes every member of a struct class as if marked [StructField.varint]
+ *
+ * @author TimePath
+ */
+@Retention
+@Target(AnnotationTarget.CLASS)
+annotation public class StructVarint
@@ -0,0 +1,185 @@
+package com.timepath.io.struct
+
+import com.timepath.io.ByteBufferDataInput
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.NoSuchElementException
+
+/**
+ * Flyweight over consecutive fixed size records in a [ByteBuffer], such as one from `DataUtils.mapFile`.
+ * Fields are read and written in place at `base + offset`, in the buffer's byte order unless [StructField.reverse], without materializing
+ * an instance. Re-pointing the view with [at] does not allocate.
+ *
+ * ```
+ * val view = StructView(Entry::class.java, buf)
+ * val health = view.field("health")
+ * for (i in 0..view.count() - 1) total += view.at(i).getInt(health)
+ * ```
+ *
+ * @param origin Absolute offset of the first record
+ * @author TimePath
+ */
+public class StructView<T : Any>(public val type: Class<T>,
+                                 public val buffer: ByteBuffer,
+                                 public val origin: Int = 0) {
+
+    private val layout = StructLayout.of(type)
+    private val codec = Struct.codec(type)
+
+    /**
+     * Size of a single record in bytes
+     */
+    public val size: Int = layout.size
+
+    init {
+        if (size < 0) throw IllegalArgumentException("${type.name} does not have a fixed size")
+        if (size == 0) throw IllegalArgumentException("${type.name} is empty")
+    }
+
+    /**
+     * Absolute offset of the current record
+     */
+    public var base: Int = origin
+
+    /**
+     * A field resolved to its offset within the record
+     */
+    public class Field internal constructor(
+            /** Offset from the start of the record */
+            public val offset: Int,
+            public val member: StructLayout.Member) {
+
+        /** [StructField.reverse] */
+        internal val reverse = member.meta.reverse
+
+        override fun toString() = "$member @ $offset"
+    }
+
+    /**
+     * Resolves a field, nested fields are separated by '.'
+     *
+     * @param path The field name, e.g. `position.x`
+     * @throws NoSuchElementException if there is no such field
+     */
+    public fun field(path: String): Field {
+        var layout = layout
+        var offset = 0
+        val names = path.split('.')
+        for ((i, name) in names.withIndex()) {
+            val member = layout.member(name)
+            offset += layout.offsetOf(member)
+            if (i == names.size - 1) return Field(offset, member)
+            layout = StructLayout.of(member.elementType)
+        }
+        throw NoSuchElementException(path)
+    }
+
+    /**
+     * @return the number of whole records between [origin] and the buffer's limit
+     */
+    public fun count(): Int = (buffer.limit() - origin) / size
+
+    /**
+     * Points the view at a record
+     *
+     * @return this view
+     */
+    public fun at(index: Int): StructView<T> {
+        base = origin + index * size
+        return this
+    }
+
+    /**
+     * Decodes the current record
+     */
+    public fun get(out: T): T {
+        codec.read(out, ByteBufferDataInput(buffer, base))
+        return out
+    }
+
+    /**
+     * Decodes the current record into a new instance, also for immutable types
+     */
+    public fun get(): T = codec.decode(ByteBufferDataInput(buffer, base))
+
+    /**
+     * Encodes over the current record
+     */
+    public fun set(value: T) {
+        Struct.pack(value, buffer, base)
+    }
+
+    public fun getBoolean(f: Field): Boolean = buffer.get(base + f.offset).toInt() != 0
+    public fun setBoolean(f: Field, v: Boolean): Unit = buffer.put(base + f.offset, if (v) 1 else 0).let { Unit }
+
+    public fun getByte(f: Field): Byte = buffer.get(base + f.offset)
+    public fun setByte(f: Field, v: Byte): Unit = buffer.put(base + f.offset, v).let { Unit }
+
+    public fun getChar(f: Field): Char = buffer.getChar(base + f.offset).let {
+        if (f.reverse) Character.reverseBytes(it) else it
+    }
+
+    public fun setChar(f: Field, v: Char): Unit = buffer.putChar(base + f.offset,
+            if (f.reverse) Character.reverseBytes(v) else v).let { Unit }
+
+    public fun getShort(f: Field): Short = buffer.getShort(base + f.offset).let {
+        if (f.reverse) java.lang.Short.reverseBytes(it) else it
+    }
+
+    public fun setShort(f: Field, v: Short): Unit = buffer.putShort(base + f.offset,
+            if (f.reverse) java.lang.Short.reverseBytes(v) else v).let { Unit }
+
+    public fun getInt(f: Field): Int = buffer.getInt(base + f.offset).let {
+        if (f.reverse) Integer.reverseBytes(it) else it
+    }
+
+    public fun setInt(f: Field, v: Int): Unit = buffer.putInt(base + f.offset,
+            if (f.reverse) Integer.reverseBytes(v) else v).let { Unit }
+
+    public fun getLong(f: Field): Long = buffer.getLong(base + f.offset).let {
+        if (f.reverse) java.lang.Long.reverseBytes(it) else it
+    }
+
+    public fun setLong(f: Field, v: Long): Unit = buffer.putLong(base + f.offset,
+            if (f.reverse) java.lang.Long.reverseBytes(v) else v).let { Unit }
+
+    public fun getFloat(f: Field): Float = when {
+        f.reverse -> java.lang.Float.intBitsToFloat(Integer.reverseBytes(buffer.getInt(base + f.offset)))
+        else -> buffer.getFloat(base + f.offset)
+    }
+
+    public fun setFloat(f: Field, v: Float): Unit = when {
+        f.reverse -> buffer.putInt(base + f.offset, Integer.reverseBytes(java.lang.Float.floatToRawIntBits(v)))
+        else -> buffer.putFloat(base + f.offset, v)
+    }.let { Unit }
+
+    public fun getDouble(f: Field): Double = when {
+        f.reverse -> java.lang.Double.longBitsToDouble(java.lang.Long.reverseBytes(buffer.getLong(base + f.offset)))
+        else -> buffer.getDouble(base + f.offset)
+    }
+
+    public fun setDouble(f: Field, v: Double): Unit = when {
+        f.reverse -> buffer.putLong(base + f.offset, java.lang.Long.reverseBytes(java.lang.Double.doubleToRawLongBits(v)))
+        else -> buffer.putDouble(base + f.offset, v)
+    }.let { Unit }
+
+    /**
+     * Decodes a fixed size string, ending at the first NUL as [StructCodec.readString] does
+     */
+    public fun getString(f: Field): String {
+        val start = base + f.offset
+        var len = 0
+        while (len < f.member.size && buffer.get(start + len) != 0.toByte()) len++
+        val b = ByteArray(len)
+        for (i in b.indices) b[i] = buffer.get(start + i)
+        return StructCodec.decode(b, 0, len)
+    }
+
+    /**
+     * Encodes a fixed size string, truncating or padding with NUL
+     */
+    public fun setString(f: Field, v: String) {
+        val b = v.toByteArray(StandardCharsets.UTF_8)
+        for (i in 0..f.member.size - 1) buffer.put(base + f.offset + i, if (i < b.size) b[i] else 0)
+    }
+}
@@ -0,0 +1,26 @@
+package com.timepath.io.struct;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public final class Prebuilt$$StructCodec extends StructCodec<Prebuilt> {
+
+    @NotNull
+    @Override
+    public Prebuilt instantiate() {
+        return new Prebuilt();
+    }
+
+    @Override
+    public void read(@NotNull Prebuilt instance, @NotNull DataInput input) throws IOException {
+        instance.value = input.readInt();
+    }
+
+    @Override
+    public void write(@NotNull Prebuilt instance, @NotNull DataOutput output) throws IOException {
+        output.writeInt(instance.value);
+    }
+}
@@ -0,0 +1,10 @@
+package com.timepath.io.struct;
+
+/**
+ * Struct with a hand written stand-in for a processor generated codec
+ */
+public class Prebuilt {
+
+    @StructField
+    public int value;
+}
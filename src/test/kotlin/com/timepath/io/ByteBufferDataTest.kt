@@ -0,0 +1,37 @@
+package com.timepath.io
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.UTFDataFormatException
+import java.nio.ByteBuffer
+
+public class ByteBufferDataTest {
+
+    @Test fun testUTF() {
+        val s = "a\u0000é€😀"
+        val expected = ByteArrayOutputStream().apply { DataOutputStream(this).writeUTF(s) }.toByteArray()
+        val buf = ByteBuffer.allocate(expected.size)
+        val output = ByteBufferDataOutput(buf, 0)
+        output.writeUTF(s)
+        assertEquals(expected.size, output.position())
+        assertArrayEquals(expected, buf.array())
+        assertEquals(s, ByteBufferDataInput(buf, 0).readUTF())
+    }
+
+    @Test(expected = UTFDataFormatException::class) fun testUTFTooLong() {
+        ByteBufferDataOutput(ByteBuffer.allocate(0x10000)).writeUTF("€".repeat(0x6000))
+    }
+
+    @Test fun testReadLine() {
+        val input = ByteBufferDataInput(ByteBuffer.wrap("one\ntwo\r\nthree\rfour".toByteArray()), 0)
+        assertEquals("one", input.readLine())
+        assertEquals("two", input.readLine())
+        assertEquals("three", input.readLine())
+        assertEquals("four", input.readLine())
+        assertNull(input.readLine())
+    }
+}
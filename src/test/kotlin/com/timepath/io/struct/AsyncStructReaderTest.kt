@@ -0,0 +1,72 @@
+package com.timepath.io.struct
+
+import com.timepath.io.OrderedOutputStream
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteOrder
+import java.nio.channels.AsynchronousFileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.function.Consumer
+
+public class AsyncStructReaderTest {
+
+    class Record {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var name = ""
+    }
+
+    private fun records(n: Int, truncate: Int = 0): File {
+        val file = File.createTempFile("struct", ".bin")
+        file.deleteOnExit()
+        FileOutputStream(file).use {
+            val os = OrderedOutputStream(it)
+            os.order(ByteOrder.LITTLE_ENDIAN)
+            for (i in 0..n - 1) {
+                val r = Record()
+                r.id = i
+                // Some records larger than the headroom
+                r.name = if (i % 100 == 0) "x".repeat(300) else "#$i"
+                Struct.pack(r, os)
+            }
+        }
+        if (truncate > 0) java.io.RandomAccessFile(file, "rw").use { it.setLength(it.length() - truncate) }
+        return file
+    }
+
+    @Test fun testRead() {
+        val file = records(5000)
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            val channel = AsynchronousFileChannel.open(file.toPath(), setOf(StandardOpenOption.READ), executor)
+            val reader = AsyncStructReader(Record::class.java, channel, ByteOrder.LITTLE_ENDIAN,
+                    DirectBufferPool(256, 4), executor)
+            var batches = 0
+            var i = 0
+            val count = reader.use {
+                it.read(Consumer { batch ->
+                    batches++
+                    for (r in batch) assertEquals(i++, r.id)
+                }).get()
+            }
+            assertEquals(5000L, count)
+            assertEquals(5000, i)
+            assertTrue(batches > 1)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test(expected = ExecutionException::class) fun testTruncated() {
+        val file = records(10, 2)
+        val channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ)
+        AsyncStructReader(Record::class.java, channel, ByteOrder.LITTLE_ENDIAN).use { it.readAll().get() }
+    }
+}
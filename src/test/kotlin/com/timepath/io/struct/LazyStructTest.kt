@@ -0,0 +1,62 @@
+package com.timepath.io.struct
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Test
+import java.nio.ByteBuffer
+
+public class LazyStructTest {
+
+    class Inner {
+
+        @StructField(index = 0)
+        var x = 0
+        @StructField(index = 1)
+        var y = 0
+    }
+
+    class Record {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var name = ""
+        @StructField(index = 2, skip = 3)
+        var inner = Inner()
+        @StructField(index = 3)
+        var value = 0.0
+    }
+
+    @Test fun testLazy() {
+        val buf = ByteBuffer.allocate(128)
+        val offsets = IntArray(2)
+        for (i in offsets.indices) {
+            val r = Record()
+            r.id = i
+            r.name = "record $i"
+            r.inner.y = i * 10
+            r.value = i + 0.5
+            offsets[i] = buf.position()
+            Struct.pack(r, buf)
+        }
+        val rec = LazyStruct(Record::class.java, buf, 0)
+        assertEquals(0.5, rec.getDouble("value"), 0.0)
+        assertEquals(1, rec.at(offsets[1]).getInt("id"))
+        assertEquals(10, rec.nested("inner").getInt("y"))
+        assertEquals(1.5, rec.getDouble("value"), 0.0)
+        assertEquals("record 1", rec["name"])
+        assertEquals(0, rec.at(offsets[0]).nested("inner").getInt("y"))
+
+        val full = rec.at(offsets[1]).get()
+        assertEquals(1, full.id)
+        assertEquals(10, full.inner.y)
+        assertFalse(buf.position() == 0) // Untouched
+    }
+
+    data class Point(@StructField(index = 0) val x: Int,
+                     @StructField(index = 1) val y: Short)
+
+    @Test(expected = IllegalArgumentException::class) fun testImmutable() {
+        LazyStruct(Point::class.java, ByteBuffer.wrap(Struct.pack(Point(1, 2))!!))
+    }
+}
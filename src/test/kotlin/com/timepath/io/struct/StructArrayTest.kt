@@ -0,0 +1,103 @@
+package com.timepath.io.struct
+
+import com.timepath.io.OrderedInputStream
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+public class StructArrayTest {
+
+    class Entry {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1, skip = 2, reverse = true)
+        var health = 0.0f
+        @StructField(index = 2, limit = 4)
+        var name = ""
+    }
+
+    private fun entries(n: Int): ByteBuffer {
+        val buf = ByteBuffer.allocate(n * 14).order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0..n - 1) {
+            val e = Entry()
+            e.id = i
+            e.health = i * 0.5f
+            e.name = "e$i"
+            Struct.pack(e, buf)
+        }
+        buf.flip()
+        return buf
+    }
+
+    @Test fun testColumns() {
+        val buf = entries(100)
+        val array = StructArray(Entry::class.java, 150, ByteOrder.LITTLE_ENDIAN)
+        assertEquals(100, array.load(buf))
+        assertEquals(0, buf.remaining())
+        val id = array.column("id")
+        val health = array.column("health")
+        var ids = 0
+        var total = 0.0f
+        for (i in 0..array.size - 1) {
+            ids += id.getInt(i)
+            total += health.getFloat(i)
+        }
+        assertEquals(4950, ids)
+        assertEquals(2475.0f, total, 0f)
+        health.setFloat(3, 9.0f)
+        val e = array[3]
+        assertEquals(3, e.id)
+        assertEquals(9.0f, e.health, 0f)
+        assertEquals("e3", e.name.trimEnd('\u0000'))
+        assertEquals(100, array.count())
+    }
+
+    class Sized {
+
+        @StructField(index = 0, length = 2)
+        var values = IntArray(2)
+    }
+
+    @Test fun testAddFailure() {
+        val array = StructArray(Sized::class.java, 4)
+        array.add(Sized())
+        try {
+            array.add(Sized().apply { values = IntArray(3) })
+            fail()
+        } catch (expected: IllegalStateException) {
+        }
+        assertEquals(1, array.size)
+    }
+
+    @Test fun testStream() {
+        val buf = entries(10)
+        val bytes = ByteArray(buf.remaining())
+        buf.get(bytes)
+        val `is` = OrderedInputStream(ByteArrayInputStream(bytes))
+        `is`.order(ByteOrder.LITTLE_ENDIAN)
+        val array = StructArray(Entry::class.java, 5, ByteOrder.LITTLE_ENDIAN)
+        assertEquals(5, array.load(`is`, 10))
+        val e = Entry()
+        e.id = 42
+        array[4] = e
+        assertEquals(42, array.column("id").getInt(4))
+    }
+
+    data class Point(@StructField(index = 0) val x: Int,
+                     @StructField(index = 1, skip = 2, reverse = true) val y: Short)
+
+    @Test fun testImmutable() {
+        val array = StructArray(Point::class.java, 4, ByteOrder.LITTLE_ENDIAN)
+        array.add(Point(1, 2))
+        val buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+        Struct.pack(Point(3, 4), buf)
+        buf.flip()
+        array.load(buf)
+        assertEquals(listOf(Point(1, 2), Point(3, 4)), array.toList())
+        assertEquals(4.toShort(), array.column("y").getShort(1))
+    }
+}
@@ -0,0 +1,144 @@
+package com.timepath.io.struct
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+public class StructDeltaTest {
+
+    class Inner {
+
+        @StructField
+        var value = 0
+    }
+
+    class State {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1, skip = 4)
+        var position = DoubleArray(3)
+        @StructField(index = 2)
+        var name = "state"
+        @StructField(index = 3)
+        var inner = Inner()
+    }
+
+    private fun delta(delta: StructDelta<State>, previous: State, current: State): ByteArray {
+        val baos = ByteArrayOutputStream()
+        delta.write(previous, current, DataOutputStream(baos))
+        return baos.toByteArray()
+    }
+
+    @Test fun testDelta() {
+        val delta = StructDelta(State::class.java)
+        val snapshot = State()
+        val mirror = State()
+        val state = State()
+
+        assertEquals(1, delta(delta, snapshot, state).size) // Bitmap only
+
+        state.id = 5
+        var bytes = delta(delta, snapshot, state)
+        assertEquals(1 + 4, bytes.size)
+        assertEquals(1, delta.apply(mirror, DataInputStream(ByteArrayInputStream(bytes))))
+        assertEquals(5, mirror.id)
+        assertEquals(5, snapshot.id)
+
+        state.position[1] = 2.5
+        state.inner.value = 7
+        bytes = delta(delta, snapshot, state)
+        assertEquals(1 + 3 * 8 + 4, bytes.size)
+        assertEquals(2, delta.apply(mirror, DataInputStream(ByteArrayInputStream(bytes))))
+        assertArrayEquals(state.position, mirror.position, 0.0)
+        assertEquals(7, mirror.inner.value)
+
+        // Snapshot holds copies, not references
+        state.position[1] = 3.5
+        assertEquals(1 + 3 * 8, delta(delta, snapshot, state).size)
+        assertEquals(1, delta(delta, snapshot, state).size)
+    }
+
+    class Named {
+
+        @StructField(index = 0, limit = 4)
+        var name = ""
+    }
+
+    class Scene {
+
+        @StructField(index = 0)
+        var main = Named()
+        @StructField(index = 1, length = 2)
+        var others = arrayOf(Named(), Named())
+        @StructField(index = 2, limit = 2)
+        var tags = arrayOf("", "")
+    }
+
+    @Test fun testLimitedStrings() {
+        val delta = StructDelta(Scene::class.java)
+        val snapshot = Scene()
+        val scene = Scene()
+        scene.main.name = "truncated"
+        scene.others[1].name = "also truncated"
+        scene.tags[0] = "long"
+        val baos = ByteArrayOutputStream()
+        assertEquals(3, delta.write(snapshot, scene, DataOutputStream(baos)))
+        val mirror = Scene()
+        delta.apply(mirror, DataInputStream(ByteArrayInputStream(baos.toByteArray())))
+        assertEquals("trun", mirror.main.name)
+        assertEquals("also", mirror.others[1].name)
+        assertEquals("lo", mirror.tags[0])
+
+        // Unchanged values are not resent, and the snapshot does not share instances
+        assertEquals(0, delta.write(snapshot, scene, DataOutputStream(ByteArrayOutputStream())))
+        scene.others[0].name = "x"
+        assertEquals("", snapshot.others[0].name)
+        assertEquals(1, delta.write(snapshot, scene, DataOutputStream(ByteArrayOutputStream())))
+    }
+
+    class Part {
+
+        @StructField
+        var value = 3
+    }
+
+    class Holder {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var part: Part? = Part()
+    }
+
+    @Test fun testNull() {
+        val delta = StructDelta(Holder::class.java)
+        val snapshot = Holder()
+        val mirror = Holder()
+        val holder = Holder()
+        holder.part = null
+        val baos = ByteArrayOutputStream()
+        assertEquals(1, delta.write(snapshot, holder, DataOutputStream(baos)))
+        assertEquals(1 + 4, baos.size())
+        delta.apply(mirror, DataInputStream(ByteArrayInputStream(baos.toByteArray())))
+        // Sent as padding, so both sides hold a blank struct
+        assertEquals(0, mirror.part!!.value)
+        assertEquals(0, snapshot.part!!.value)
+
+        assertEquals(0, delta.write(snapshot, holder, DataOutputStream(ByteArrayOutputStream())))
+        holder.part = Part()
+        assertEquals(1, delta.write(snapshot, holder, DataOutputStream(ByteArrayOutputStream())))
+        assertEquals(3, snapshot.part!!.value)
+    }
+
+    data class Point(@StructField(index = 0) val x: Int,
+                     @StructField(index = 1) val y: Int)
+
+    @Test(expected = IllegalArgumentException::class) fun testImmutable() {
+        StructDelta(Point::class.java)
+    }
+}
@@ -0,0 +1,110 @@
+package com.timepath.io.struct
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.File
+import java.nio.ByteOrder
+
+public class StructFileTest {
+
+    class Entry {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var value = 0.0
+        @StructField(index = 2, limit = 8)
+        var name = ""
+    }
+
+    private fun entry(i: Int) = Entry().apply {
+        id = i
+        value = i / 2.0
+        name = "#$i"
+    }
+
+    @Test fun testRandomAccess() {
+        val file = File.createTempFile("struct", ".bin")
+        file.deleteOnExit()
+        StructFile(Entry::class.java, file, ByteOrder.LITTLE_ENDIAN, 16).use {
+            for (i in 0..99) assertEquals(i.toLong(), it.append(entry(i)))
+            it[50] = entry(-50)
+            assertEquals(100L, it.size())
+        }
+        assertEquals(100L * 20, file.length())
+        StructFile(Entry::class.java, file, ByteOrder.LITTLE_ENDIAN, 16).use {
+            assertEquals(100L, it.size())
+            val out = Entry()
+            for (i in longArrayOf(99, 0, 17, 16, 15)) {
+                it.get(i, out)
+                assertEquals(i.toInt(), out.id)
+                assertEquals(i / 2.0, out.value, 0.0)
+                assertEquals("#$i", out.name)
+            }
+            assertEquals(-50, it[50].id)
+            it.append(entry(100))
+            assertEquals(100, it[100].id)
+        }
+        assertEquals(101L * 20, file.length())
+    }
+
+    @Test fun testDefaultSegments() {
+        val file = File.createTempFile("struct", ".bin")
+        file.deleteOnExit()
+        StructFile(Entry::class.java, file).use {
+            assertEquals(64 * 1024 * 1024 / 20, it.segmentRecords)
+            for (i in 0..2) it.append(entry(i))
+            assertEquals(2, it[2].id)
+        }
+        assertEquals(3L * 20, file.length())
+    }
+
+    @Test fun testUnclosed() {
+        val file = File.createTempFile("struct", ".bin")
+        file.deleteOnExit()
+        val writer = StructFile(Entry::class.java, file, ByteOrder.LITTLE_ENDIAN, 16)
+        for (i in 0..9) writer.append(entry(i))
+        assertEquals(16L * 20, file.length())
+        writer.flush()
+        assertEquals(10L * 20, file.length())
+        // Lookups do not pad the file again
+        assertEquals(9, writer[9].id)
+        writer[3] = entry(-3)
+        assertEquals(10L * 20, file.length())
+        writer.flush()
+        val index = File(file.path + ".id")
+        index.deleteOnExit()
+        StructIndex(Entry::class.java, "id", file, index, ByteOrder.LITTLE_ENDIAN).use { assertEquals(10L, it.size) }
+        StructFile(Entry::class.java, file, ByteOrder.LITTLE_ENDIAN, 16).use {
+            assertEquals(10L, it.size())
+            assertEquals(-3, it[3].id)
+        }
+        // Appending after a flush maps the last segment in full again
+        assertEquals(10L, writer.append(entry(10)))
+        assertEquals(10, writer[10].id)
+        assertEquals(16L * 20, file.length())
+        writer.close()
+        assertEquals(11L * 20, file.length())
+    }
+
+    @Test(expected = IndexOutOfBoundsException::class) fun testBounds() {
+        val file = File.createTempFile("struct", ".bin")
+        file.deleteOnExit()
+        StructFile(Entry::class.java, file).use { it[0] }
+    }
+
+    data class Point(@StructField(index = 0) val x: Int,
+                     @StructField(index = 1, skip = 2, reverse = true) val y: Short)
+
+    @Test fun testImmutable() {
+        val file = File.createTempFile("struct", ".bin")
+        file.deleteOnExit()
+        StructFile(Point::class.java, file).use {
+            it.append(Point(1, 2))
+            it.append(Point(3, 4))
+            it[0] = Point(5, 6)
+            assertEquals(Point(5, 6), it[0])
+            assertEquals(Point(3, 4), it[1])
+        }
+    }
+}
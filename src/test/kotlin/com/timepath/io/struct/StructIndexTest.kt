@@ -0,0 +1,59 @@
+package com.timepath.io.struct
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.File
+import java.nio.ByteOrder
+
+public class StructIndexTest {
+
+    class Entry {
+
+        @StructField(index = 0)
+        var id = 0L
+        @StructField(index = 1)
+        var key = 0
+    }
+
+    private fun entry(id: Int, key: Int) = Entry().apply {
+        this.id = id.toLong()
+        this.key = key
+    }
+
+    @Test fun testLookup() {
+        val records = File.createTempFile("struct", ".bin")
+        val index = File(records.path + ".key")
+        records.deleteOnExit()
+        index.deleteOnExit()
+        val keys = intArrayOf(5, 3, 9, 3, 7, 1)
+        StructFile(Entry::class.java, records, ByteOrder.LITTLE_ENDIAN).use {
+            for ((i, k) in keys.withIndex()) it.append(entry(i, k))
+        }
+        StructIndex(Entry::class.java, "key", records, index, ByteOrder.LITTLE_ENDIAN).use {
+            assertEquals(6L, it.size)
+            assertEquals(12L, it.first(3))
+            assertEquals(-1L, it.first(4))
+            assertArrayEquals(longArrayOf(12, 36), it[3])
+            assertArrayEquals(longArrayOf(12, 36, 0, 48), it.range(2, 7))
+            assertArrayEquals(longArrayOf(), it.range(10, 20))
+        }
+
+        // Appended keys both after and within the indexed range
+        StructFile(Entry::class.java, records, ByteOrder.LITTLE_ENDIAN).use {
+            it.append(entry(6, 10))
+            it.append(entry(7, 11))
+        }
+        StructIndex(Entry::class.java, "key", records, index, ByteOrder.LITTLE_ENDIAN).use {
+            assertEquals(8L, it.size)
+            assertArrayEquals(longArrayOf(72, 84), it.range(10, Long.MAX_VALUE))
+        }
+        StructFile(Entry::class.java, records, ByteOrder.LITTLE_ENDIAN).use {
+            it.append(entry(8, 4))
+        }
+        StructIndex(Entry::class.java, "key", records, index, ByteOrder.LITTLE_ENDIAN).use {
+            assertEquals(9L, it.size)
+            assertArrayEquals(longArrayOf(60, 12, 36, 96, 0), it.range(Long.MIN_VALUE, 5))
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.timepath.io.struct
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import com.timepath.io.OrderedInputStream
+import com.timepath.io.OrderedOutputStream
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.Channels
+import javax.management.ObjectName
+import javax.management.openmbean.CompositeData
+
+public class StructMetricsTest {
+
+    class Sample {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var name = "sample"
+    }
+
+    class Child {
+
+        @StructField(index = 0)
+        var value = 0
+    }
+
+    class Parent {
+
+        @StructField(index = 0)
+        var child = Child()
+        @StructField(index = 1, length = 2)
+        var children = arrayOf(Child(), Child())
+    }
+
+    @Test fun testNested() {
+        val bytes: ByteArray
+        StructMetrics.enabled = true
+        try {
+            // Compiled while enabled
+            bytes = Struct.pack(Parent())!!
+            Struct.unpack(Parent(), *bytes)
+            Struct.unpack(Child(), 0, 0, 0, 1)
+        } finally {
+            StructMetrics.enabled = false
+        }
+        Struct.unpack(Parent(), *bytes)
+        val parent = StructMetrics.of(Parent::class.java)
+        assertEquals(1L, parent.packed)
+        assertEquals(1L, parent.unpacked)
+        assertEquals(1L, StructMetrics.of(Child::class.java).unpacked)
+        assertEquals(0L, StructMetrics.of(Child::class.java).instantiations)
+    }
+
+    @Test fun testCounters() {
+        StructMetrics.enabled = true
+        try {
+            val bytes = Struct.pack(Sample())!!
+            val buf = ByteBuffer.wrap(bytes)
+            val out = Sample()
+            for (i in 1..3) {
+                buf.position(0)
+                Struct.unpack(out, buf)
+            }
+            Struct.decode(Sample::class.java, *bytes)
+            val m = StructMetrics.of(Sample::class.java)
+            assertEquals(1L, m.packed)
+            assertEquals(4L, m.unpacked)
+            assertEquals(4L * bytes.size, m.bytesUnpacked)
+            assertEquals(1L, m.instantiations)
+            assertTrue(m.unpackNanos > 0)
+
+            StructMetrics.register()
+            val server = ManagementFactory.getPlatformMBeanServer()
+            val layouts = server.getAttribute(ObjectName(StructMetrics.NAME), "Layouts") as Array<*>
+            assertTrue(layouts.any { (it as CompositeData).get("type") == Sample::class.java.name })
+        } finally {
+            StructMetrics.enabled = false
+        }
+        Struct.pack(Sample())
+        assertEquals(1L, StructMetrics.of(Sample::class.java).packed)
+    }
+
+    class Streamed {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var name = "streamed"
+    }
+
+    @Test fun testStreams() {
+        val baos = ByteArrayOutputStream()
+        for (i in 0..9) Struct.pack(Streamed().apply { name = "#$i" }, OrderedOutputStream(baos))
+        val bytes = baos.toByteArray()
+        StructMetrics.enabled = true
+        try {
+            // Records span chunks, so most are attempted more than once
+            val reader = StructReader(Streamed::class.java, Channels.newChannel(ByteArrayInputStream(bytes)),
+                    ByteOrder.BIG_ENDIAN, 5)
+            assertEquals(10, reader.asSequence().count())
+            var m = StructMetrics.of(Streamed::class.java)
+            assertEquals(10L, m.unpacked)
+            assertEquals(10L, m.instantiations)
+            assertEquals(bytes.size.toLong(), m.bytesUnpacked)
+
+            // Counted as read, not from what the source reports as available
+            val input = OrderedInputStream(object : ByteArrayInputStream(bytes) {
+                override fun available() = 0
+            })
+            for (i in 0..9) Struct.unpack(Streamed(), input)
+            m = StructMetrics.of(Streamed::class.java)
+            assertEquals(20L, m.unpacked)
+            assertEquals(2L * bytes.size, m.bytesUnpacked)
+        } finally {
+            StructMetrics.enabled = false
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.timepath.io.struct
+
+import com.timepath.io.OrderedInputStream
+import com.timepath.io.OrderedOutputStream
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.UncheckedIOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.ReadableByteChannel
+
+public class StructReaderTest {
+
+    class Record {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var name = ""
+    }
+
+    private fun records(n: Int): ByteArray {
+        val baos = ByteArrayOutputStream()
+        val os = OrderedOutputStream(baos)
+        os.order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0..n - 1) {
+            val r = Record()
+            r.id = i
+            r.name = "#$i"
+            Struct.pack(r, os)
+        }
+        return baos.toByteArray()
+    }
+
+    @Test fun testIterate() {
+        val bytes = records(1000)
+        val `is` = OrderedInputStream(ByteArrayInputStream(bytes))
+        `is`.order(ByteOrder.LITTLE_ENDIAN)
+        var i = 0
+        for (r in StructReader(Record::class.java, `is`)) {
+            assertEquals(i, r.id)
+            assertEquals("#$i", r.name)
+            i++
+        }
+        assertEquals(1000, i)
+    }
+
+    @Test fun testBulkRead() {
+        val bytes = records(1000)
+        var singles = 0
+        val `is` = OrderedInputStream(object : ByteArrayInputStream(bytes) {
+            override fun read(): Int {
+                singles++
+                return super.read()
+            }
+        })
+        `is`.order(ByteOrder.LITTLE_ENDIAN)
+        assertEquals(1000, StructReader(Record::class.java, `is`).asSequence().count())
+        assertEquals(0, singles)
+        assertEquals(bytes.size, `is`.position())
+    }
+
+    @Test fun testSmallChunks() {
+        val bytes = records(100)
+        val reader = StructReader(Record::class.java, java.nio.channels.Channels.newChannel(ByteArrayInputStream(bytes)),
+                ByteOrder.LITTLE_ENDIAN, 3)
+        assertEquals((0..99).toList(), reader.asSequence().map { it.id }.toList())
+        assertFalse(reader.hasNext())
+    }
+
+    @Test fun testStream() {
+        val bytes = records(10)
+        val sum = StructReader(Record::class.java, ByteArrayInputStream(bytes), ByteOrder.LITTLE_ENDIAN).stream()
+                .mapToInt { it.id }.sum()
+        assertEquals(45, sum)
+    }
+
+    @Test fun testRecycle() {
+        val bytes = records(100)
+        val pool = StructPool(Record::class.java, 2)
+        val seen = java.util.IdentityHashMap<Record, Unit>()
+        var sum = 0
+        for (r in StructReader(Record::class.java, ByteArrayInputStream(bytes), ByteOrder.LITTLE_ENDIAN).recycle(pool)) {
+            sum += r.id
+            seen[r] = Unit
+            pool.release(r)
+        }
+        assertEquals(4950, sum)
+        assertEquals(1, seen.size)
+
+        val reader = StructReader(Record::class.java, ByteArrayInputStream(bytes), ByteOrder.LITTLE_ENDIAN)
+        val into = Record()
+        var n = 0
+        while (reader.readInto(into)) assertEquals(n++, into.id)
+        assertEquals(100, n)
+    }
+
+    @Test(expected = UncheckedIOException::class) fun testTruncated() {
+        val bytes = records(2)
+        val reader = StructReader(Record::class.java, ByteArrayInputStream(bytes, 0, bytes.size - 2))
+        while (reader.hasNext()) reader.next()
+    }
+
+    @Test fun testTruncatedRecycle() {
+        val bytes = records(2)
+        val pool = StructPool(Record::class.java, 2)
+        val reader = StructReader(Record::class.java, ByteArrayInputStream(bytes, 0, bytes.size - 2)).recycle(pool)
+        reader.next()
+        try {
+            reader.hasNext()
+            fail()
+        } catch (e: UncheckedIOException) {
+            // Expected
+        }
+        assertEquals(1, pool.size())
+    }
+
+    @Test(expected = UncheckedIOException::class) fun testNoProgress() {
+        val stalled = object : ReadableByteChannel {
+            override fun read(dst: ByteBuffer) = 0
+            override fun isOpen() = true
+            override fun close() = Unit
+        }
+        StructReader(Record::class.java, stalled).hasNext()
+    }
+
+    class Empty
+
+    @Test(expected = IllegalArgumentException::class) fun testEmpty() {
+        StructReader(Empty::class.java, ByteArrayInputStream(ByteArray(4)))
+    }
+}
@@ -1,8 +1,19 @@
 package com.timepath.io.struct
 
+import com.timepath.io.BitBuffer
+import com.timepath.io.OrderedInputStream
+import com.timepath.io.OrderedOutputStream
 import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
 import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.EOFException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 public class StructTest {
 
@@ -42,6 +53,478 @@ public class StructTest {
         System.out.println("arrays")
     }
 
+    @Test fun testNested() {
+        val w = Outer()
+        w.inner.value = 0x01020304
+        w.ints = intArrayOf(5, 6)
+        val packed = Struct.pack(w)!!
+        assertArrayEquals(byteArrayOf(1, 2, 3, 4, 0, 0, 0, 5, 0, 0, 0, 6), packed)
+        val out = OrderedInputStream(ByteArrayInputStream(packed)).readStruct(Outer::class.java)
+        assertEquals(w.inner.value, out.inner.value)
+        assertArrayEquals(w.ints, out.ints)
+    }
+
+    @Test fun testByteBuffer() {
+        val w = Outer()
+        w.inner.value = 1
+        w.ints = intArrayOf(2, 3)
+        val buf = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+        buf.position(2)
+        Struct.pack(w, buf)
+        assertEquals(14, buf.position())
+        assertEquals(2, buf.getInt(6))
+        val out = Outer()
+        assertEquals(14, Struct.unpack(out, buf, 2))
+        assertEquals(14, buf.position())
+        assertEquals(w.inner.value, out.inner.value)
+        assertArrayEquals(w.ints, out.ints)
+    }
+
+    @Test fun testBulkArrays() {
+        class Arrays {
+
+            @StructField(index = 0)
+            var ints = IntArray(5000)
+            @StructField(index = 1)
+            var doubles = arrayOf(DoubleArray(3), DoubleArray(2))
+        }
+
+        val a = Arrays()
+        for (i in a.ints.indices) a.ints[i] = i * 31
+        a.doubles[1][1] = 1.5
+        val baos = ByteArrayOutputStream()
+        val os = OrderedOutputStream(baos)
+        os.order(ByteOrder.LITTLE_ENDIAN)
+        Struct.pack(a, os)
+        val bytes = baos.toByteArray()
+        assertEquals(5000 * 4 + 5 * 8, bytes.size)
+        assertEquals(31, ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt(4))
+
+        val fromStream = Arrays()
+        val `is` = OrderedInputStream(ByteArrayInputStream(bytes))
+        `is`.order(ByteOrder.LITTLE_ENDIAN)
+        Struct.unpack(fromStream, `is`)
+        assertArrayEquals(a.ints, fromStream.ints)
+        assertEquals(1.5, fromStream.doubles[1][1], 0.0)
+
+        val fromBuffer = Arrays()
+        Struct.unpack(fromBuffer, ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN))
+        assertArrayEquals(a.ints, fromBuffer.ints)
+        assertEquals(1.5, fromBuffer.doubles[1][1], 0.0)
+    }
+
+    class Fixed(@StructField(index = 0) var id: Int) {
+
+        @StructField(index = 1, length = 3)
+        var values: ShortArray? = null
+        @StructField(index = 2, limit = 4)
+        var name = ""
+    }
+
+    @Test fun testFixedLength() {
+        // No nullary constructor, so must be computed statically
+        assertEquals(4 + 3 * 2 + 4, Struct.sizeof(Fixed::class.java))
+        assertTrue(Struct.isFixed(Fixed::class.java))
+        assertFalse(Struct.isFixed(Outer::class.java))
+        val f = Fixed(1)
+        f.values = shortArrayOf(1, 2, 3)
+        val bytes = Struct.pack(f)!!
+        assertEquals(14, bytes.size)
+        val out = Fixed(0)
+        Struct.unpack(out, *bytes)
+        assertArrayEquals(f.values, out.values)
+    }
+
+    class Truncated {
+        @StructField(index = 0, limit = 8)
+        var fixed = Fixed(0)
+        @StructField(index = 1)
+        var id = 0
+    }
+
+    @Test fun testNestedLimit() {
+        val layout = StructLayout.of(Truncated::class.java)
+        assertEquals(8, layout.members[0].size)
+        assertEquals(8 + 4, layout.size)
+    }
+
+    class Node {
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1)
+        var count: Byte = 0
+        @StructField(index = 2, lengthRef = "count")
+        var children = arrayOf<Node>()
+    }
+
+    @Test fun testRecursiveLayout() {
+        val layout = StructLayout.of(Node::class.java)
+        assertEquals(-1, layout.members[2].size)
+        assertFalse(layout.isFixed)
+    }
+
+    @Test fun testRecursive() {
+        val leaf = Node()
+        leaf.id = 2
+        val root = Node()
+        root.id = 1
+        root.count = 1
+        root.children = arrayOf(leaf)
+        val bytes = Struct.pack(root)!!
+        assertEquals(Struct.sizeof(root), bytes.size)
+        val out = Node()
+        Struct.unpack(out, *bytes)
+        assertEquals(1, out.children.size)
+        assertEquals(2, out.children[0].id)
+        assertEquals(0, out.children[0].children.size)
+    }
+
+    class Counted {
+
+        @StructField(index = 0)
+        var count: Byte = 0
+        @StructField(index = 1, lengthRef = "count")
+        var items: IntArray? = null
+        @StructField(index = 2, limit = 4, lengthRef = "count")
+        var names: Array<String>? = null
+    }
+
+    @Test fun testLengthRef() {
+        val c = Counted()
+        c.count = 200.toByte()
+        c.items = IntArray(200) { it }
+        c.names = Array(200) { "#$it" }
+        val bytes = Struct.pack(c)!!
+        val out = Counted()
+        Struct.unpack(out, *bytes)
+        assertArrayEquals(c.items, out.items)
+        assertArrayEquals(c.names, out.names)
+        assertEquals(bytes.size, Struct.sizeof(out))
+
+        val buf = ByteBuffer.allocate(bytes.size)
+        Struct.pack(c, BitBuffer(buf))
+        val fromBits = Counted()
+        Struct.unpack(fromBits, BitBuffer(ByteBuffer.wrap(buf.array())))
+        assertArrayEquals(c.items, fromBits.items)
+
+        c.count = 1
+        try {
+            Struct.pack(c, OrderedOutputStream(ByteArrayOutputStream()))
+            fail()
+        } catch (expected: IllegalStateException) {
+        }
+    }
+
+    @StructVarint
+    class Compact {
+
+        @StructField(index = 0)
+        var small: Int = 0
+        @StructField(index = 1)
+        var large: Long = 0
+        @StructField(index = 2)
+        var count: Short = 0
+        @StructField(index = 3, lengthRef = "count")
+        var values: IntArray? = null
+        @StructField(index = 4, limit = 4)
+        var name: String = ""
+        @StructField(index = 5)
+        var ratio: Float = 0f
+    }
+
+    class Mixed {
+
+        @StructField(index = 0)
+        var fixed: Int = 0
+        @StructField(index = 1, varint = true)
+        var packed: Int = 0
+        @StructField(index = 2, varint = true, dedup = true)
+        var names: Array<String> = arrayOf("", "")
+    }
+
+    @Test fun testVarint() {
+        val c = Compact()
+        c.small = -3
+        c.large = Long.MIN_VALUE
+        c.count = 3
+        c.values = intArrayOf(0, 63, -65)
+        c.name = "truncated"
+        c.ratio = 0.5f
+        val bytes = Struct.pack(c)!!
+        // 1 + 10 + 1 + (1 + 1 + 2) + (1 + 4) + 4
+        assertEquals(25, bytes.size)
+        assertEquals(bytes.size, Struct.sizeof(c))
+        assertFalse(StructLayout.of(Compact::class.java).isFixed)
+        val out = Compact()
+        Struct.unpack(out, *bytes)
+        assertEquals(c.small, out.small)
+        assertEquals(c.large, out.large)
+        assertArrayEquals(c.values, out.values)
+        assertEquals("trun", out.name)
+        assertEquals(c.ratio, out.ratio, 0f)
+        val bb = ByteBuffer.allocate(64)
+        Struct.pack(c, BitBuffer(bb))
+        val bits = Compact()
+        Struct.unpack(bits, BitBuffer(ByteBuffer.wrap(bb.array())))
+        assertEquals(c.large, bits.large)
+        assertArrayEquals(c.values, bits.values)
+
+        val m = Mixed()
+        m.fixed = 1
+        m.packed = 300
+        m.names = arrayOf("a", "bc")
+        val mixed = Struct.pack(m)!!
+        assertArrayEquals(byteArrayOf(0, 0, 0, 1, -40, 4, 1, 'a'.toByte(), 2, 'b'.toByte(), 'c'.toByte()), mixed)
+        val back = Mixed()
+        Struct.unpack(back, *mixed)
+        assertEquals(300, back.packed)
+        assertArrayEquals(m.names, back.names)
+    }
+
+    @Test(expected = EOFException::class) fun testVarintTruncated() {
+        // Claims Int.MAX_VALUE - 8 bytes follow
+        val bytes = byteArrayOf(0xF7.toByte(), -1, -1, -1, 0x07, 1, 2, 3)
+        StructCodec.readPrefixedString(OrderedInputStream(ByteArrayInputStream(bytes)), 0)
+    }
+
+    data class Point(@StructField(index = 0) val x: Int,
+                     @StructField(index = 1, reverse = true) val y: Short,
+                     @StructField(index = 2) val n: Byte,
+                     @StructField(index = 3, lengthRef = "n") val tags: Array<String>)
+
+    class Path {
+
+        @StructField(index = 0)
+        var start: Point? = null
+        @StructField(index = 1, length = 2)
+        var points: Array<Point>? = null
+    }
+
+    @Test fun testImmutable() {
+        val p = Point(1, 2, 2, arrayOf("a", "b"))
+        val q = Struct.decode(Point::class.java, *Struct.pack(p)!!)
+        assertEquals(p.x, q.x)
+        assertEquals(p.y, q.y)
+        assertArrayEquals(p.tags, q.tags)
+        assertFalse(Struct.codec(Point::class.java).isMutable)
+
+        val path = Path()
+        path.start = p
+        path.points = arrayOf(p, Point(3, 4, 0, arrayOf()))
+        val out = Path()
+        Struct.unpack(out, *Struct.pack(path)!!)
+        assertEquals(1, out.start!!.x)
+        assertEquals(4.toShort(), out.points!![1].y)
+    }
+
+    class Record {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1, length = 3)
+        var values = ShortArray(3)
+        @StructField(index = 2, limit = 4)
+        var name = ""
+    }
+
+    @Test fun testParallel() {
+        val records = Array(10000) { Record() }
+        for ((i, r) in records.withIndex()) {
+            r.id = i
+            r.values[2] = i.toShort()
+        }
+        val buf = ByteBuffer.allocate(4 + records.size * 14).order(ByteOrder.LITTLE_ENDIAN)
+        buf.position(4)
+        Struct.packAll(records, buf)
+        assertEquals(buf.capacity(), buf.position())
+        assertEquals(9999, buf.getInt(4 + 9999 * 14))
+
+        buf.position(4)
+        val pool = java.util.concurrent.ForkJoinPool(3)
+        val out = Struct.unpackAll(Record::class.java, buf, records.size, pool)
+        pool.shutdown()
+        assertEquals(buf.capacity(), buf.position())
+        for (i in out.indices) {
+            assertEquals(i, out[i].id)
+            assertEquals(i.toShort(), out[i].values[2])
+        }
+    }
+
+    @Test fun testBits() {
+        class Packed {
+
+            @StructField(index = 0, bits = 3)
+            var kind: Byte = 0
+            @StructField(index = 1, bits = 11)
+            var x = 0
+            @StructField(index = 2, bits = 11)
+            var y = 0
+            @StructField(index = 3, bits = 1)
+            var flag = false
+            @StructField(index = 4)
+            var id = 0
+            @StructField(index = 5, bits = 4)
+            var nibbles = ShortArray(3)
+        }
+
+        val p = Packed()
+        p.kind = 5
+        p.x = 2047
+        p.y = 1000
+        p.flag = true
+        p.id = -2
+        p.nibbles[2] = 15
+        val buf = ByteBuffer.allocate(9) // 70 bits
+        Struct.pack(p, BitBuffer(buf))
+        val bits = BitBuffer(ByteBuffer.wrap(buf.array()))
+        assertEquals(5L, bits.getBits(3))
+        assertEquals(2047L, bits.getBits(11))
+
+        val out = Packed()
+        val input = BitBuffer(ByteBuffer.wrap(buf.array()))
+        Struct.unpack(out, input)
+        assertEquals(3 + 11 + 11 + 1 + 32 + 3 * 4, input.positionBits())
+        assertEquals(p.kind, out.kind)
+        assertEquals(p.x, out.x)
+        assertEquals(p.y, out.y)
+        assertEquals(p.flag, out.flag)
+        assertEquals(p.id, out.id)
+        assertArrayEquals(p.nibbles, out.nibbles)
+    }
+
+    class Labelled {
+
+        @StructField(index = 0, limit = 4)
+        var name = ""
+        @StructField(index = 1, bits = 4)
+        var tag: Byte = 0
+        @StructField(index = 2, limit = 2, length = 2)
+        var codes = arrayOf("", "")
+    }
+
+    @Test fun testBitStrings() {
+        for (name in arrayOf("", "ab", "abcd")) {
+            val l = Labelled()
+            l.name = name
+            l.tag = 9
+            l.codes = arrayOf("x", "yz")
+            val buf = ByteBuffer.allocate(9) // 68 bits
+            Struct.pack(l, BitBuffer(buf))
+            val out = Labelled()
+            val input = BitBuffer(ByteBuffer.wrap(buf.array()))
+            Struct.unpack(out, input)
+            // Fixed size strings are read to their limit, wherever they end
+            assertEquals(4 * 8 + 4 + 2 * 2 * 8, input.positionBits())
+            assertEquals(name, out.name)
+            assertEquals(l.tag, out.tag)
+            assertArrayEquals(l.codes, out.codes)
+        }
+    }
+
+    @Test(expected = IllegalStateException::class) fun testBitArrayLength() {
+        val l = Labelled()
+        l.codes = arrayOf("x")
+        Struct.pack(l, BitBuffer(ByteBuffer.allocate(9)))
+    }
+
+    @Test fun testStrings() {
+        class Named {
+
+            @StructField(index = 0, limit = 8, dedup = true)
+            var name = ""
+            @StructField(index = 1)
+            var note = ""
+        }
+
+        val n = Named()
+        n.name = "player"
+        n.note = "caf\u00e9"
+        val bytes = Struct.pack(n)!!
+        val a = Named()
+        val b = Named()
+        Struct.unpack(a, *bytes)
+        Struct.unpack(b, *bytes)
+        assertEquals("player", a.name) // Trimmed at the first NUL
+        assertTrue(a.name === b.name)
+        assertEquals(n.note, a.note)
+    }
+
+    @Test fun testPadding() {
+        class Padded {
+
+            @StructField(index = 0, skip = 10000)
+            var a = 0
+            @StructField(index = 1, limit = 6)
+            var s = "ab"
+        }
+
+        val p = Padded()
+        p.a = 3
+        val bytes = Struct.pack(p)!!
+        assertEquals(10000 + 4 + 6, bytes.size)
+        assertEquals(3, ByteBuffer.wrap(bytes).getInt(10000))
+        val out = Padded()
+        Struct.unpack(out, OrderedInputStream(ByteArrayInputStream(bytes)))
+        assertEquals(3, out.a)
+        assertEquals("ab", out.s.trimEnd('\u0000'))
+    }
+
+    @Test fun testReverse() {
+        class Mixed {
+
+            @StructField(index = 0)
+            var a = 0
+            @StructField(index = 1, reverse = true)
+            var b = 0
+            @StructField(index = 2, reverse = true)
+            var f = 0f
+            @StructField(index = 3, reverse = true)
+            var shorts = ShortArray(2)
+        }
+
+        val m = Mixed()
+        m.a = 1
+        m.b = 2
+        m.f = 1.5f
+        m.shorts[1] = 3
+        val bytes = Struct.pack(m)!!
+        val buf = ByteBuffer.wrap(bytes)
+        assertEquals(1, buf.getInt(0))
+        val le = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN)
+        assertEquals(2, le.getInt(4))
+        assertEquals(1.5f, le.getFloat(8), 0f)
+        assertEquals(3.toShort(), le.getShort(14))
+
+        val out = Mixed()
+        Struct.unpack(out, *bytes)
+        assertEquals(m.a, out.a)
+        assertEquals(m.b, out.b)
+        assertEquals(m.f, out.f, 0f)
+        assertArrayEquals(m.shorts, out.shorts)
+    }
+
+    @Test fun testGenerated() {
+        val codec = Struct.codec(Prebuilt::class.java)
+        assertEquals(Prebuilt::class.java.name + StructCodec.GENERATED_SUFFIX, codec.javaClass.name)
+        val p = Prebuilt()
+        p.value = 7
+        assertArrayEquals(byteArrayOf(0, 0, 0, 7), Struct.pack(p))
+    }
+
+    class Inner {
+
+        @StructField
+        var value = 0
+    }
+
+    class Outer {
+
+        @StructField(index = 0)
+        val inner = Inner()
+        @StructField(index = 1)
+        var ints = IntArray(2)
+    }
+
     inner class Example {
 
         @StructField
@@ -0,0 +1,93 @@
+package com.timepath.io.struct
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+public class StructViewTest {
+
+    class Vec {
+
+        @StructField(index = 0)
+        var x: Short = 0
+        @StructField(index = 1)
+        var y: Short = 0
+    }
+
+    class Entry {
+
+        @StructField(index = 0)
+        var id = 0
+        @StructField(index = 1, skip = 2)
+        val pos = Vec()
+        @StructField(index = 2, limit = 4)
+        var name = ""
+    }
+
+    @Test fun testView() {
+        val buf = ByteBuffer.allocate(3 * 14).order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0..2) {
+            val e = Entry()
+            e.id = i
+            e.pos.y = (i * 10).toShort()
+            e.name = "e$i"
+            Struct.pack(e, buf, i * 14)
+        }
+        val view = StructView(Entry::class.java, buf)
+        assertEquals(14, view.size)
+        assertEquals(3, view.count())
+        val id = view.field("id")
+        val y = view.field("pos.y")
+        assertEquals(8, y.offset)
+        var sum = 0
+        for (i in 0..view.count() - 1) sum += view.at(i).getShort(y)
+        assertEquals(30, sum)
+        view.at(1).setInt(id, 42)
+        assertEquals(42, view.get(Entry()).id)
+        val name = view.field("name")
+        assertEquals("e1", view.getString(name))
+        view.setString(name, "full")
+        assertEquals("full", view.getString(name))
+        assertEquals(view.getString(name), view.get(Entry()).name)
+    }
+
+    class Swapped {
+
+        @StructField(index = 0, reverse = true)
+        var a = 0
+        @StructField(index = 1, reverse = true)
+        var d = 0.0
+    }
+
+    @Test fun testReverse() {
+        val s = Swapped()
+        s.a = 7
+        s.d = 0.5
+        val buf = ByteBuffer.wrap(Struct.pack(s)!!)
+        val view = StructView(Swapped::class.java, buf)
+        assertEquals(7, view.getInt(view.field("a")))
+        assertEquals(0.5, view.getDouble(view.field("d")), 0.0)
+        view.setInt(view.field("a"), 9)
+        assertEquals(9, buf.order(ByteOrder.LITTLE_ENDIAN).getInt(0))
+    }
+
+    data class Point(@StructField(index = 0) val x: Int,
+                     @StructField(index = 1, skip = 2, reverse = true) val y: Short)
+
+    @Test fun testImmutable() {
+        val buf = ByteBuffer.allocate(16)
+        Struct.pack(Point(1, 2), buf, 0)
+        Struct.pack(Point(3, 4), buf, 8)
+        val view = StructView(Point::class.java, buf)
+        assertEquals(Point(3, 4), view.at(1).get())
+        view.at(0).set(Point(5, 6))
+        assertEquals(Point(5, 6), view.get())
+    }
+
+    class Empty
+
+    @Test(expected = IllegalArgumentException::class) fun testEmpty() {
+        StructView(Empty::class.java, ByteBuffer.allocate(4))
+    }
+}